@@ -0,0 +1,39 @@
+import system_components.FileStorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Main_Migrate {
+    public static void main(String[] args) {
+        // Takes the same storage directories as Main_Server and refuses to run while a server has
+        // them open; a running server moves its own flat files into shards in the background
+        List<File> fileDirs = new ArrayList<>();
+        if (args.length == 0) {
+            fileDirs.add(new File("./server_files"));
+        }
+        for (String arg : args) {
+            fileDirs.add(new File(arg));
+        }
+        for (File fileDir : fileDirs) {
+            if (!fileDir.isDirectory()) {
+                System.out.println("Error: " + fileDir.getPath() + " is not a directory");
+                return;
+            }
+        }
+
+        // The result is printed below; the event log still gets a copy in server_logs
+        System.setProperty("fes.logconsole", "false");
+        try {
+            FileStorage storage = new FileStorage(fileDirs);
+            int moved = storage.migrate();
+            storage.close();
+            System.out.println("Moved " + moved + " files into shards.");
+        } catch (FileStorage.VolumeInUseException e) {
+            System.out.println("Error: " + e.getMessage() + ". Stop the server before migrating.");
+        } catch (IOException e) {
+            System.out.println("Error occurred while migrating the server files: " + e.getMessage());
+        }
+    }
+}
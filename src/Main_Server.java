@@ -1,21 +1,49 @@
+import system_components.SecureSocket;
 import system_components.Server;
 
+import javax.net.ssl.SSLContext;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Main_Server {
     public static void main(String[] args) {
-        File fileDir = new File("./server_files");
-        if (!fileDir.exists()) {
-            boolean dirCreated = fileDir.mkdirs();
+        // Each argument is a storage directory, ideally one per disk; files are spread across all of them
+        List<File> fileDirs = new ArrayList<>();
+        if (args.length == 0) {
+            fileDirs.add(new File("./server_files"));
+        }
+        for (String arg : args) {
+            fileDirs.add(new File(arg));
+        }
+        for (File fileDir : fileDirs) {
+            if (!fileDir.exists()) {
+                boolean dirCreated = fileDir.mkdirs();
+                if (!dirCreated) {
+                    System.out.println("Error: Couldn't create directory for files");
+                    return;
+                }
+            }
+        }
+
+        File mailboxDir = new File("./server_mailbox");
+        if (!mailboxDir.exists()) {
+            boolean dirCreated = mailboxDir.mkdirs();
             if (!dirCreated) {
-                System.out.println("Error: Couldn't create directory for files");
+                System.out.println("Error: Couldn't create directory for mailboxes");
                 return;
             }
         }
 
         try {
-            Server server = new Server(fileDir);
+            // TLS is turned on by pointing -Dfes.keystore at a PKCS12 keystore (password in -Dfes.storepass)
+            SSLContext sslContext = null;
+            String keyStore = System.getProperty("fes.keystore");
+            if (keyStore != null) {
+                sslContext = SecureSocket.createServerContext(new File(keyStore), System.getProperty("fes.storepass", "").toCharArray());
+            }
+            Server server = new Server(fileDirs, mailboxDir, sslContext);
         } catch (IOException e) {
             System.out.println("Error occurred while starting the server: " + e.getMessage());
         }
@@ -1,12 +1,19 @@
 package system_components;
 
+import javax.net.ssl.SSLContext;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 import java.io.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Stream;
 
 public class Client {
+    private static final int RECONNECT_ATTEMPTS = 6;
+    private static final long RECONNECT_BASE_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 15_000;
 
     private Socket socket;
     private Socket msgSocket;
@@ -22,12 +29,22 @@ public class Client {
     private DataInputStream dis;
     private DataOutputStream dos;
     private MessageHandler messageHandler;
+    // Kept for the life of the client so reconnects can resume the cached TLS session
+    private SSLContext sslContext;
+    private final DownloadCache downloadCache;
+    // Issued by the server on /register; lets a dropped connection get its session back
+    private String sessionToken;
+    // Held while a command runs and while reconnecting, so the message reader and the command loop never swap sockets under each other
+    private final Object connectionLock = new Object();
+
+    private enum GetResult { NOT_MODIFIED, DOWNLOADED, FAILED }
 
     public Client(File path) {
         this.downloadPath = path.getPath() + File.separator;
         this.UploadPath = path.getPath() + File.separator;
         this.isConnected = false;
         this.isRegistered = false;
+        this.downloadCache = new DownloadCache(path);
     }
 
     public void getCommand() {
@@ -42,35 +59,164 @@ public class Client {
     }
 
     public void clientServerInteractions() throws IOException {
-        try {
-            System.out.print("\nEnter command: ");
-            String command = scanner.nextLine();
-            dos.writeUTF(command);
-            parseServerCommand(command);
-        } catch (IOException e) {
-            System.out.println(System.lineSeparator().repeat(25));
-            System.out.println("Error occurred while parsing the command: " + e.getMessage());
-            disconnect();
+        System.out.print("\nEnter command: ");
+        String command = scanner.nextLine();
+        synchronized (connectionLock) {
+            if (!this.isConnected) {
+                // The connection was lost while the user was typing and could not be resumed
+                parseCommand(command);
+                return;
+            }
+            try {
+                if (command.split(" ")[0].equals("/sync")) {
+                    handleSync(command);
+                    return;
+                }
+                dos.writeUTF(toServerCommand(command));
+                parseServerCommand(command);
+            } catch (IOException e) {
+                if (this.sessionToken != null && reconnect()) {
+                    System.out.println("\n" + command + " was cut off by the dropped connection and may not have run. Enter it again if needed.");
+                    return;
+                }
+                System.out.println(System.lineSeparator().repeat(25));
+                System.out.println("Error occurred while parsing the command: " + e.getMessage());
+                disconnect();
+            }
+        }
+    }
+
+    /*
+     * Called by the message reader when the server closes the message socket. Reconnecting right
+     * away, rather than on the next command, keeps an idle user within the session's grace period.
+     */
+    private void handleDroppedConnection(MessageHandler handler) {
+        synchronized (connectionLock) {
+            // A /leave or a reconnect from the command side has already replaced this reader
+            if (this.messageHandler != handler || this.sessionToken == null) {
+                return;
+            }
+            try {
+                if (reconnect()) {
+                    System.out.print("\nEnter command: ");
+                }
+            } catch (IOException e) {
+                System.out.println(Error.ERROR_MESSAGES.get("ConnectionFailed"));
+            }
         }
     }
 
     private void connect (String host, int port) throws IOException {
         try {
-            this.socket = new Socket(host, port);
-            this.msgSocket = new Socket(host, port + 1);
-            this.dis = new DataInputStream(socket.getInputStream());
-            this.dos = new DataOutputStream(socket.getOutputStream());
-            this.isConnected = true;
-            this.messageHandler = new MessageHandler(this.msgSocket);
-            this.messageHandler.start();
+            String welcomeMsg = openConnection(host, port);
             System.out.println(System.lineSeparator().repeat(25));
-            System.out.println(dis.readUTF());
+            System.out.println(welcomeMsg);
         } catch (IOException e) {
             System.out.println(Error.ERROR_MESSAGES.get("ConnectionFailed"));
             disconnect();
         }
     }
 
+    // Opens both sockets and returns the server's welcome message
+    private String openConnection(String host, int port) throws IOException {
+        this.socket = openSocket(host, port, port);
+        this.msgSocket = openSocket(host, port + 1, port);
+        this.dis = new DataInputStream(socket.getInputStream());
+        this.dos = new DataOutputStream(socket.getOutputStream());
+        this.isConnected = true;
+        String welcomeMsg = dis.readUTF();
+        // With TLS the welcome comes after the session ticket, so the message socket resumes that session
+        if (this.msgSocket instanceof SecureSocket secureSocket) {
+            secureSocket.startHandshake();
+        }
+        this.messageHandler = new MessageHandler(this.msgSocket);
+        this.messageHandler.start();
+        return welcomeMsg;
+    }
+
+    /*
+     * Gets the session back after the connection dropped. Attempts back off exponentially with
+     * jitter so the clients cut off by one network blip do not all hit the server at once, and a
+     * TLS reconnect resumes the cached session instead of doing a full handshake.
+     */
+    private boolean reconnect() throws IOException {
+        String token = this.sessionToken;
+        disconnect();
+        System.out.println("\nConnection to the server was lost. Reconnecting...");
+        long backoff = RECONNECT_BASE_MILLIS;
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+                openConnection(this.host, this.port);
+                dos.writeUTF("/resume " + token);
+                continueUploads(resumeSession(token));
+                return true;
+            } catch (IOException e) {
+                disconnect();
+                backoff = Math.min(backoff * 2, RECONNECT_MAX_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        this.sessionToken = null;
+        System.out.println(Error.ERROR_MESSAGES.get("ConnectionFailed"));
+        return false;
+    }
+
+    // Reads the /resume reply and returns the uploads to continue; empty if the user has to register again
+    private List<String> resumeSession(String token) throws IOException {
+        String response = dis.readUTF();
+        System.out.println("\n" + response);
+        if (response.contains("Error")) {
+            this.sessionToken = null;
+            return List.of();
+        }
+        this.sessionToken = token;
+        this.isRegistered = true;
+        int uploads = dis.readInt();
+        List<String> resumable = new ArrayList<>();
+        List<String> changed = new ArrayList<>();
+        for (int i = 0; i < uploads; i++) {
+            String fileName = dis.readUTF();
+            long received = dis.readLong();
+            long size = dis.readLong();
+            // Only continue if the local file is still the one that was being sent
+            if (new File(this.UploadPath + fileName).length() == size) {
+                System.out.printf("Upload of %s stopped at %d of %d bytes.\n", fileName, received, size);
+                resumable.add(fileName);
+            } else {
+                changed.add(fileName);
+            }
+        }
+        // The server holds the rest open until told otherwise
+        for (String fileName : changed) {
+            dos.writeUTF("/drop " + fileName);
+            dis.readUTF();
+            System.out.printf("Upload of %s was dropped because the local file changed.\n", fileName);
+        }
+        return resumable;
+    }
+
+    private void continueUploads(List<String> fileNames) throws IOException {
+        for (String fileName : fileNames) {
+            dos.writeUTF("/continue " + fileName);
+            continueUpload(fileName);
+        }
+    }
+
+    // TLS is used when -Dfes.truststore points at a PKCS12 truststore with the server's certificate (password in -Dfes.trustpass)
+    private Socket openSocket(String host, int port, int sessionPort) throws IOException {
+        String trustStore = System.getProperty("fes.truststore");
+        if (trustStore == null) {
+            return new Socket(host, port);
+        }
+        if (this.sslContext == null) {
+            this.sslContext = SecureSocket.createClientContext(new File(trustStore), System.getProperty("fes.trustpass", "").toCharArray());
+        }
+        return SecureSocket.connect(this.sslContext, host, port, sessionPort);
+    }
+
     private void disconnect() throws IOException {
         try {
             if (socket != null) {
@@ -90,10 +236,14 @@ public class Client {
                 dos = null;
             }
             if(messageHandler != null) {
-                messageHandler.interrupt();
+                // The reader may be the one reconnecting, and must not cut its own backoff short
+                if (messageHandler != Thread.currentThread()) {
+                    messageHandler.interrupt();
+                }
                 messageHandler = null;
             }
             isConnected = false;
+            isRegistered = false;
         } catch (IOException e) {
             System.out.println(Error.ERROR_MESSAGES.get("DisconnectionFailed"));
         }
@@ -127,19 +277,30 @@ public class Client {
         System.exit(0);
     }
 
-    public void get(String fileName) throws IOException {
+    // /get is sent as a conditional get so an unchanged local copy is not downloaded again
+    private String toServerCommand(String input) {
+        String[] command = input.split(" ");
+        if (command[0].equals("/get") && command.length > 1) {
+            String fileName = String.join(" ", Arrays.copyOfRange(command, 1, command.length));
+            return "/cget " + downloadCache.etagFor(fileName) + " " + fileName;
+        }
+        return input;
+    }
+
+    private GetResult get(String fileName) throws IOException {
         File file = new File(this.downloadPath + fileName);
         String serverResponse = dis.readUTF();
         if (serverResponse.contains("Error")) {
             System.out.println("File " + fileName + " not found on the server");
-            return;
+            return GetResult.FAILED;
+        }
+        if (serverResponse.equals("NOT_MODIFIED")) {
+            System.out.println("\nFile " + fileName + " is already up to date.");
+            return GetResult.NOT_MODIFIED;
         }
         long fileSize = dis.readLong();
         long initialFileSize = fileSize;
-        if (fileSize == -1) {
-            dis.readUTF();
-            return;
-        }
+        String etag = dis.readUTF();
         try (FileOutputStream fos = new FileOutputStream(file)) {
             byte[] buffer = new byte[4 * 1024];
             int bytesRead, bytesSoFar = 0;
@@ -157,6 +318,74 @@ public class Client {
         }
         serverResponse = dis.readUTF();
         System.out.println("\n" + serverResponse);
+        if (serverResponse.contains("Error")) {
+            downloadCache.forget(fileName);
+            return GetResult.FAILED;
+        }
+        downloadCache.record(fileName, etag);
+        return GetResult.DOWNLOADED;
+    }
+
+    // Refreshes the named file, or every previously downloaded file, using only conditional gets
+    private void handleSync(String input) throws IOException {
+        if (!this.isRegistered) {
+            System.out.println(Error.ERROR_MESSAGES.get("Unregistered"));
+            return;
+        }
+        String[] command = input.split(" ");
+        // Same as /get: everything after the command is one name, which may contain spaces
+        List<String> fileNames = command.length > 1
+                ? List.of(String.join(" ", Arrays.copyOfRange(command, 1, command.length)))
+                : downloadCache.getFileNames();
+        if (fileNames.isEmpty()) {
+            System.out.println("\nNo downloaded files to sync.");
+            return;
+        }
+
+        int upToDate = 0, updated = 0, failed = 0;
+        for (String fileName : fileNames) {
+            dos.writeUTF("/cget " + downloadCache.etagFor(fileName) + " " + fileName);
+            switch (get(fileName)) {
+                case NOT_MODIFIED -> upToDate++;
+                case DOWNLOADED -> updated++;
+                case FAILED -> failed++;
+            }
+        }
+        System.out.printf("\nSync finished: %d up to date, %d updated, %d failed.\n", upToDate, updated, failed);
+    }
+
+    // Receives a file another user sent with /send; the server names the file
+    public void receive() throws IOException {
+        String serverResponse = dis.readUTF();
+        if (serverResponse.contains("Error")) {
+            System.out.println(serverResponse);
+            return;
+        }
+        String fileName = new File(dis.readUTF()).getName();
+        File file = new File(this.downloadPath + fileName);
+        long fileSize = dis.readLong();
+        long initialFileSize = fileSize;
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            byte[] buffer = new byte[4 * 1024];
+            int bytesRead, bytesSoFar = 0;
+            while (fileSize > 0
+                    && (bytesRead = dis.read(
+                    buffer, 0,
+                    (int) Math.min(buffer.length, fileSize)))
+                    != -1) {
+
+                fos.write(buffer, 0, bytesRead);
+                bytesSoFar += bytesRead;
+                progressBar("Receiving " + fileName + ":", initialFileSize, bytesSoFar);
+                fileSize -= bytesRead;
+            }
+        }
+        serverResponse = dis.readUTF();
+        if (serverResponse.contains("Error")) {
+            // The sender dropped out, what was written is padding
+            file.delete();
+        }
+        System.out.println("\n" + serverResponse);
     }
 
     public void store(String fileName) throws IOException {
@@ -174,10 +403,25 @@ public class Client {
             return;
         }
         System.out.println(serverResponse);
+        upload(file, 0);
+    }
 
+    // Answers /continue: the server says where the interrupted upload stopped and the rest follows
+    private void continueUpload(String fileName) throws IOException {
+        String serverResponse = dis.readUTF();
+        if (serverResponse.contains("Error")) {
+            System.out.println(serverResponse);
+            return;
+        }
+        upload(new File(this.UploadPath + fileName), dis.readLong());
+    }
+
+    private void upload(File file, long offset) throws IOException {
         try (FileInputStream fis = new FileInputStream(file)) {
+            fis.getChannel().position(offset);
             byte[] buffer = new byte[4 * 1024];
-            int bytesRead, bytesSoFar = 0;
+            int bytesRead;
+            long bytesSoFar = offset;
             while ((bytesRead = fis.read(buffer)) != -1) {
                 dos.write(buffer, 0, bytesRead);
                 bytesSoFar += bytesRead;
@@ -238,6 +482,7 @@ public class Client {
                     String response = dis.readUTF();
                     if (response.contains("success")) {
                         this.isRegistered = true;
+                        this.sessionToken = dis.readUTF();
                     }
                     System.out.println("\n" + response);
                 }
@@ -259,7 +504,38 @@ public class Client {
                     String fileName = String.join(" ", Arrays.copyOfRange(command, 1, command.length));
                     store(fileName);
                 }
+                case "/send" -> {
+                    if (!this.isRegistered || command.length < 3) {
+                        System.out.println("\n" + dis.readUTF());
+                        break;
+                    }
+                    String fileName = String.join(" ", Arrays.copyOfRange(command, 2, command.length));
+                    System.out.println("Waiting for " + command[1] + " to accept the file...");
+                    store(fileName);
+                }
+                case "/accept" -> {
+                    if (!this.isRegistered || command.length != 2) {
+                        System.out.println("\n" + dis.readUTF());
+                        break;
+                    }
+                    receive();
+                }
+                case "/resume" -> {
+                    if (this.isRegistered || command.length != 2) {
+                        System.out.println("\n" + dis.readUTF());
+                        break;
+                    }
+                    continueUploads(resumeSession(command[1]));
+                }
+                case "/continue" -> {
+                    if (!this.isRegistered || command.length == 1) {
+                        System.out.println("\n" + dis.readUTF());
+                        break;
+                    }
+                    continueUpload(String.join(" ", Arrays.copyOfRange(command, 1, command.length)));
+                }
                 case "/leave" -> {
+                    this.sessionToken = null;
                     disconnectFromServer();
                 }
 
@@ -288,7 +564,7 @@ public class Client {
                     System.out.println("\n" + msg);
                     System.out.print("Enter command: ");
                 } catch (IOException e) {
-                    interrupt();
+                    handleDroppedConnection(this);
                     break;
                 }
             }
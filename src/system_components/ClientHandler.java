@@ -2,18 +2,31 @@ package system_components;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static system_components.Server.getCurrentTime;
 
 public class ClientHandler implements Runnable {
+    private static final long RELEASE_TIMEOUT_SECONDS = 5;
+    // Leaves room under writeUTF's 65535 bytes for the header of a /find reply
+    private static final int MAX_FIND_REPLY = 65535 - 100;
+
     private final Socket clientSocket;
     private String alias;
     private final Server server;
     private final DataInputStream dataInputStream;
     private final DataOutputStream dataOutputStream;
     private boolean isRegistered = false;
+    private final Server.MsgClient msgClient;
+    private SessionRegistry.Session session;
+    // Counted down once cleanup has finished, so a resuming connection sees everything this one left behind
+    private final CountDownLatch released = new CountDownLatch(1);
 
     private final Object fileLock = new Object();
 
@@ -21,6 +34,7 @@ public class ClientHandler implements Runnable {
         this.clientSocket = clientSocket;
         this.server = server;
         this.alias = alias;
+        this.msgClient = server.msgClients.get(alias);
         this.dataInputStream = new DataInputStream(this.clientSocket.getInputStream());
         this.dataOutputStream = new DataOutputStream(this.clientSocket.getOutputStream());
     }
@@ -31,33 +45,50 @@ public class ClientHandler implements Runnable {
             String welcomeMsg = String.format("\nConnection to the File Exchange Server is successful!\nWelcome, %s!\nUse the /? command to see the list of commands.\n",
                     alias);
             dataOutputStream.writeUTF(welcomeMsg);
+            // The client reads the welcome before it starts on the message socket, which by then can resume this session
+            this.server.msgClients.get(alias).startHandshake();
 
             // listening loop for client's commands
             while (true) {
                 try {
                     String data = dataInputStream.readUTF(); // this reads command from client
                     String[] command = data.split("[ \n]");
-                    System.out.println("User " + alias + " wants to execute " + data);
+                    // The resume token is as good as a password, so it stays out of the log
+                    String logged = command[0].equals("/resume") ? "/resume" : data;
+                    EventLog.info("command", alias, "User " + alias + " wants to execute " + logged);
                     boolean isRunning = parseCommand(command);
                     if (!isRunning) {
                         break;
                     }
                 } catch (IOException e) {
-                    System.out.println("Client " + alias + " disconnected unexpectedly");
+                    EventLog.warn("connection", alias, "Client " + alias + " disconnected unexpectedly");
                     break;
                 }
             }
         } catch (IOException e) {
-            System.out.println("An error occurred during communication with client " + alias);
-            e.printStackTrace();
+            EventLog.error("connection", alias, "An error occurred during communication with client " + alias, e);
         } finally {
             cleanup();
         }
     }
     private void cleanup() {
-        //Cleanup both client maps on the server
-        this.server.clients.remove(alias);
-        this.server.msgClients.remove(alias);
+        //Cleanup both client maps on the server; a connection that resumed this session may already own the alias
+        this.server.clients.remove(alias, clientSocket);
+        this.server.msgClients.remove(alias, msgClient);
+        msgClient.close();
+        if (!isRegistered) {
+            this.server.topics.unsubscribeAll(alias);
+        } else if (session == null) {
+            releaseAlias(alias);
+        } else {
+            String parkedAlias = alias;
+            if (this.server.sessions.park(session, this, () -> {
+                EventLog.info("session", parkedAlias, "Session of " + parkedAlias + " expired");
+                releaseAlias(parkedAlias);
+            })) {
+                EventLog.info("session", alias, "Holding the session of " + alias + " for a reconnect");
+            }
+        }
 
         try {
             if (clientSocket != null) {
@@ -70,11 +101,37 @@ public class ClientHandler implements Runnable {
                 dataOutputStream.close();
             }
         } catch (IOException e) {
-            System.out.println("Error occurred while closing resources for client " + alias);
-            e.printStackTrace();
+            EventLog.error("connection", alias, "Error occurred while closing resources for client " + alias, e);
         }
-        System.out.println("Cleanup completed for client " + alias);
+        EventLog.info("connection", alias, "Cleanup completed for client " + alias);
         this.alias = null;
+        released.countDown();
+    }
+
+    private void releaseAlias(String alias) {
+        this.server.topics.unsubscribeAll(alias);
+        this.server.users.release(alias);
+        this.server.publishPresence(alias, false);
+    }
+
+    // Drops a connection whose session was resumed elsewhere; its handler thread then cleans up
+    void closeConnection() {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            EventLog.error("connection", alias, "Error occurred while closing a replaced connection", e);
+        }
+        msgClient.close();
+    }
+
+    // False if the handler is still busy, e.g. waiting on a relay, after the timeout
+    boolean awaitRelease() {
+        try {
+            return released.await(RELEASE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
 
@@ -83,35 +140,66 @@ public class ClientHandler implements Runnable {
             switch (command[0]) {
                 case "/leave":
                     handleLeave();
-                    System.out.println("User " + alias + " has left the server.");
+                    EventLog.info("connection", alias, "User " + alias + " has left the server.");
                     return false;
 
                 case "/?":
                     handleHelp();
-                    System.out.println("Command executed successfully.");
+                    EventLog.debug("command", alias, "Command executed successfully.");
                     break;
                 case "/register":
                     if (command.length != 2) {
                         dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
-                        System.out.println("Command Failed!");
+                        EventLog.info("command", alias, "Command Failed!");
                         break;
                     }
                     handleRegister(command[1]);
                     break;
+                case "/resume":
+                    if (this.isRegistered || command.length != 2) {
+                        dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+                        EventLog.info("command", alias, "Command Failed!");
+                        break;
+                    }
+                    handleResume(command[1]);
+                    break;
 
                 case "/dir":
                     if (handleUnregistered()) {
                         break;
                     }
                     handleFilelist();
-                    System.out.println("Command executed successfully.");
+                    EventLog.debug("command", alias, "Command executed successfully.");
+                    break;
+                case "/find":
+                    if (handleUnregistered()) {
+                        break;
+                    }
+                    if (command.length < 2 || command.length > 3) {
+                        dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+                        EventLog.info("command", alias, "Command Failed!");
+                        break;
+                    }
+                    handleFind(command);
+                    EventLog.debug("command", alias, "Command executed successfully.");
                     break;
                 case "/userlist":
                     if (handleUnregistered()) {
                         break;
                     }
-                    handleUserlist();
-                    System.out.println("Command executed successfully.");
+                    handleUserlist(command);
+                    EventLog.debug("command", alias, "Command executed successfully.");
+                    break;
+                case "/presence":
+                    if (handleUnregistered()) {
+                        break;
+                    }
+                    if (command.length != 2) {
+                        dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+                        EventLog.info("command", alias, "Command Failed!");
+                        break;
+                    }
+                    handlePresence(command[1]);
                     break;
 
                 case "/message":
@@ -126,12 +214,45 @@ public class ClientHandler implements Runnable {
                     }
                     handle_broadcast(command);
                     break;
+                case "/subscribe":
+                    if (handleUnregistered()) {
+                        break;
+                    }
+                    if (command.length != 2) {
+                        dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+                        EventLog.info("command", alias, "Command Failed!");
+                        break;
+                    }
+                    handleSubscribe(command[1]);
+                    break;
+                case "/unsubscribe":
+                    if (handleUnregistered()) {
+                        break;
+                    }
+                    if (command.length != 2) {
+                        dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+                        EventLog.info("command", alias, "Command Failed!");
+                        break;
+                    }
+                    handleUnsubscribe(command[1]);
+                    break;
+                case "/publish":
+                    if (handleUnregistered()) {
+                        break;
+                    }
+                    if (command.length < 3) {
+                        dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+                        EventLog.info("command", alias, "Command Failed!");
+                        break;
+                    }
+                    handlePublish(command);
+                    break;
                 case "/get":
                     if (handleUnregistered()) {
                         break;
                     }
                     if (command.length < 2) {
-                        System.out.println("Command Failed!");
+                        EventLog.info("command", alias, "Command Failed!");
                         dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
                         break;
                     }
@@ -141,14 +262,30 @@ public class ClientHandler implements Runnable {
                         fileName.append(command[i]).append(" ");
                     }
 
-                    handleGet(fileName.toString());
+                    handleGet(fileName.toString().trim());
+                    break;
+                case "/cget":
+                    if (handleUnregistered()) {
+                        break;
+                    }
+                    if (command.length < 3) {
+                        EventLog.info("command", alias, "Command Failed!");
+                        dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+                        break;
+                    }
+                    StringBuilder cgetFile = new StringBuilder();
+                    for (int i = 2; i < command.length; i++) {
+                        cgetFile.append(command[i]).append(" ");
+                    }
+
+                    handleConditionalGet(command[1], cgetFile.toString().trim());
                     break;
                 case "/store":
                     if (handleUnregistered()) {
                         break;
                     }
                     if (command.length < 2) {
-                        System.out.println("Command Failed!");
+                        EventLog.info("command", alias, "Command Failed!");
                         dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
                         break;
                     }
@@ -157,33 +294,127 @@ public class ClientHandler implements Runnable {
                         storeFile.append(command[i]).append(" ");
                     }
 
-                    handleStore(storeFile.toString());
+                    handleStore(storeFile.toString().trim());
+                    break;
+                case "/continue":
+                    if (handleUnregistered()) {
+                        break;
+                    }
+                    if (command.length < 2) {
+                        EventLog.info("command", alias, "Command Failed!");
+                        dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+                        break;
+                    }
+                    StringBuilder continueFile = new StringBuilder();
+                    for (int i = 1; i < command.length; i++) {
+                        continueFile.append(command[i]).append(" ");
+                    }
+
+                    handleContinue(continueFile.toString().trim());
+                    break;
+                case "/drop":
+                    if (handleUnregistered()) {
+                        break;
+                    }
+                    if (command.length < 2) {
+                        EventLog.info("command", alias, "Command Failed!");
+                        dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+                        break;
+                    }
+                    StringBuilder dropFile = new StringBuilder();
+                    for (int i = 1; i < command.length; i++) {
+                        dropFile.append(command[i]).append(" ");
+                    }
+
+                    handleDrop(dropFile.toString().trim());
+                    break;
+                case "/send":
+                    if (handleUnregistered()) {
+                        break;
+                    }
+                    if (command.length < 3) {
+                        EventLog.info("command", alias, "Command Failed!");
+                        dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+                        break;
+                    }
+                    StringBuilder sendFile = new StringBuilder();
+                    for (int i = 2; i < command.length; i++) {
+                        sendFile.append(command[i]).append(" ");
+                    }
+
+                    handleSend(command[1], sendFile.toString().trim());
+                    break;
+                case "/accept":
+                case "/decline":
+                    if (handleUnregistered()) {
+                        break;
+                    }
+                    int offerId;
+                    try {
+                        offerId = command.length == 2 ? Integer.parseInt(command[1]) : -1;
+                    } catch (NumberFormatException e) {
+                        offerId = -1;
+                    }
+                    if (offerId < 0) {
+                        EventLog.info("command", alias, "Command Failed!");
+                        dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+                        break;
+                    }
+                    if (command[0].equals("/accept")) {
+                        handleAccept(offerId);
+                    } else {
+                        handleDecline(offerId);
+                    }
                     break;
                 default:
                     dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("UnknownCommand"));
             }
         } catch (IOException ex) {
-            ex.printStackTrace();
+            EventLog.error("command", alias, "Error occurred while executing " + command[0], ex);
         }
         return true;
     }
 
-    private void handleUserlist() throws IOException {
-        // Show user list that is not own user and are registered (name does not contain User)
+    private void handleUserlist(String[] command) throws IOException {
+        // A client that passes the version it last saw only gets the list again if it changed
+        UserRegistry.Snapshot snapshot = this.server.users.snapshot();
+        if (command.length == 2 && command[1].equals(String.valueOf(snapshot.version()))) {
+            dataOutputStream.writeUTF("User list unchanged (version " + snapshot.version() + ").");
+            return;
+        }
+
         StringBuilder userList = new StringBuilder();
-        for (Map.Entry<String, Socket> entry : this.server.clients.entrySet()) {
-            if (!entry.getKey().equals(this.alias) && !entry.getKey().contains("User")) {
-                userList.append(entry.getKey()).append("\n");
+        for (String user : snapshot.aliases()) {
+            if (!user.equals(this.alias)) {
+                userList.append(user).append("\n");
             }
         }
         if (userList.toString().isEmpty()) {
             userList.append("No other users connected.");
         }
-        String header = "User List:\n";
+        String header = "User List (version " + snapshot.version() + "):\n";
         dataOutputStream.writeUTF(header + userList);
     }
 
+    private void handlePresence(String mode) throws IOException {
+        switch (mode) {
+            case "on" -> {
+                this.server.users.watch(this.alias);
+                dataOutputStream.writeUTF("Presence updates enabled.");
+            }
+            case "off" -> {
+                this.server.users.unwatch(this.alias);
+                dataOutputStream.writeUTF("Presence updates disabled.");
+            }
+            default -> dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+        }
+    }
+
     private void handleLeave() throws IOException {
+        if (this.session != null) {
+            this.server.sessions.end(this.session);
+            this.session = null;
+        }
         if(this.clientSocket != null && !this.clientSocket.isClosed()) {
             this.dataOutputStream.writeUTF("Connection closed. Thank you " + this.alias);
             this.clientSocket.close();
@@ -194,30 +425,87 @@ public class ClientHandler implements Runnable {
     }
 
     private void handleRegister(String newAlias) throws IOException {
-        if(this.server.clients.containsKey(newAlias) || newAlias.isEmpty() || newAlias.contains("User")) {
+        // Claiming through the registry is atomic, so two clients racing for one alias cannot both win
+        if(newAlias.isEmpty() || newAlias.contains("User") || !this.server.users.claim(newAlias)) {
             try {
                 dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("AliasExists"));
             } catch (IOException e) {
-                e.printStackTrace();
+                EventLog.error("register", this.alias, "Error occurred while answering the registration", e);
             }
         } else {
-            try {
+            String oldAlias = this.alias;
+            boolean wasRegistered = this.isRegistered;
             this.server.clients.put(newAlias, this.clientSocket);
-            this.server.msgClients.put(newAlias, this.server.msgClients.get(this.alias));
-            this.server.clients.remove(this.alias);
-            this.server.msgClients.remove(this.alias);
+            this.server.msgClients.put(newAlias, this.server.msgClients.get(oldAlias));
+            this.server.clients.remove(oldAlias);
+            this.server.msgClients.remove(oldAlias);
+            this.server.topics.rename(oldAlias, newAlias);
             this.alias = newAlias;
             this.isRegistered = true;
+            if (wasRegistered) {
+                // Presence watching moves with the alias, the same as the topic subscriptions above
+                if (this.server.users.isWatching(oldAlias)) {
+                    this.server.users.watch(newAlias);
+                }
+                this.server.users.release(oldAlias);
+                this.server.publishPresence(oldAlias, false);
+                this.server.sessions.end(this.session);
+            }
+            this.session = this.server.sessions.issue(newAlias, this);
+            this.server.publishPresence(newAlias, true);
 
-                System.out.println("User " + this.alias + " registered successfully.");
+            try {
+                EventLog.info("register", this.alias, "User " + this.alias + " registered successfully.");
                 dataOutputStream.writeUTF("Registration successful. Welcome " + this.alias);
+                // The token lets the client take this session back after a dropped connection
+                dataOutputStream.writeUTF(this.session.getToken());
+                this.server.mailbox.open(this.alias);
+                this.server.deliverQueuedMessages(this.alias);
             } catch (IOException e) {
-                e.printStackTrace();
+                EventLog.error("register", this.alias, "Error occurred while registering " + this.alias, e);
                 dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("AliasExists"));
             }
         }
     }
 
+    private void handleResume(String token) throws IOException {
+        SessionRegistry.Resumed resumed = this.server.sessions.resume(token, this);
+        if (resumed == null) {
+            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("SessionExpired"));
+            EventLog.info("session", this.alias, "Command Failed!");
+            return;
+        }
+        if (resumed.displaced() != null) {
+            // The old handler parks an interrupted upload on its way out, so wait for it before listing them
+            resumed.displaced().closeConnection();
+            if (!resumed.displaced().awaitRelease()) {
+                EventLog.warn("session", resumed.session().getAlias(), "Resuming before the old connection has let go");
+            }
+        }
+
+        // Alias, subscriptions and presence watching were never released, so only the connection changes hands
+        String oldAlias = this.alias;
+        this.session = resumed.session();
+        this.alias = this.session.getAlias();
+        this.isRegistered = true;
+        this.server.clients.put(this.alias, this.clientSocket);
+        this.server.msgClients.put(this.alias, this.msgClient);
+        this.server.clients.remove(oldAlias, this.clientSocket);
+        this.server.msgClients.remove(oldAlias, this.msgClient);
+
+        // One reply carries the alias and where each interrupted upload stopped
+        List<SessionRegistry.Upload> uploads = this.session.getUploads();
+        dataOutputStream.writeUTF("Session resumed. Welcome back " + this.alias);
+        dataOutputStream.writeInt(uploads.size());
+        for (SessionRegistry.Upload upload : uploads) {
+            dataOutputStream.writeUTF(upload.fileName);
+            dataOutputStream.writeLong(upload.getReceived());
+            dataOutputStream.writeLong(upload.size);
+        }
+        EventLog.info("session", this.alias, "User " + this.alias + " resumed the session");
+        this.server.deliverQueuedMessages(this.alias);
+    }
+
     private void handleFilelist() throws IOException{
         this.server.updateFileList();
         if (this.clientSocket != null) {
@@ -233,6 +521,54 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    private void handleFind(String[] command) throws IOException {
+        int limit = 50;
+        if (command.length == 3) {
+            try {
+                limit = Math.min(Integer.parseInt(command[2]), 1000);
+            } catch (NumberFormatException e) {
+                limit = -1;
+            }
+            if (limit < 1) {
+                dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidParameters"));
+                return;
+            }
+        }
+
+        List<String> matches = this.server.searchIndex.find(command[1], limit);
+        if (matches.isEmpty()) {
+            dataOutputStream.writeUTF("No files match " + command[1]);
+            return;
+        }
+        // The reply is one writeUTF, so the list is cut short rather than going past its 64 KB limit
+        StringBuilder list = new StringBuilder();
+        int shown = 0;
+        int length = 0;
+        for (String match : matches) {
+            int entryLength = utfLength(match) + 1;
+            if (length + entryLength > MAX_FIND_REPLY) {
+                break;
+            }
+            list.append(match).append("\n");
+            length += entryLength;
+            shown++;
+        }
+        String header = shown == matches.size()
+                ? "Found " + matches.size() + " files:\n"
+                : "Found " + matches.size() + " files, showing " + shown + " of them:\n";
+        dataOutputStream.writeUTF(header + list);
+    }
+
+    // Bytes the text takes in writeUTF's modified UTF-8
+    private static int utfLength(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+
     private void handleMessage(String[] command) throws IOException {
 
         String targetAlias = null;
@@ -255,7 +591,16 @@ public class ClientHandler implements Runnable {
             else if (this.server.clients.containsKey(targetAlias)) {
                 this.server.msgClients.get(targetAlias).sendMsg(this.alias, message.toString());
                 dataOutputStream.writeUTF("Message sent to " + targetAlias);
-                System.out.println(this.alias + " sent a message to " + targetAlias);
+                EventLog.info("message", this.alias, this.alias + " sent a message to " + targetAlias);
+            }
+            else if (this.server.mailbox.isKnown(targetAlias)) {
+                this.server.mailbox.append(targetAlias, this.alias, getCurrentTime(), message.toString());
+                dataOutputStream.writeUTF(targetAlias + " is offline. Message queued for delivery.");
+                EventLog.info("mailbox", this.alias, this.alias + " queued a message for " + targetAlias);
+                // The target may have come online and read its mailbox just before the append
+                if (this.server.clients.containsKey(targetAlias)) {
+                    this.server.deliverQueuedMessages(targetAlias);
+                }
             }
             else {
                 dataOutputStream.writeUTF("Target user not found.");
@@ -284,97 +629,366 @@ public class ClientHandler implements Runnable {
                     if (!alias.equals(this.alias))
                         msgClient.sendMsg(this.alias, message.toString());
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    EventLog.error("message", this.alias, "Error occurred while broadcasting to " + alias, e);
                 }
             });
             dataOutputStream.writeUTF("Message sent to all users.");
-            System.out.println("User " + this.alias + " sent a message to all users.");
+            EventLog.info("message", this.alias, "User " + this.alias + " sent a message to all users.");
         }
         catch (Exception e) {
             dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("MessageFailed"));
         }
     }
 
+    private void handleSubscribe(String topic) throws IOException {
+        if (this.server.topics.subscribe(topic, this.alias)) {
+            dataOutputStream.writeUTF("Subscribed to topic " + topic);
+            EventLog.info("topic", this.alias, "User " + this.alias + " subscribed to topic " + topic);
+        } else {
+            dataOutputStream.writeUTF("Already subscribed to topic " + topic);
+        }
+    }
+
+    private void handleUnsubscribe(String topic) throws IOException {
+        if (this.server.topics.unsubscribe(topic, this.alias)) {
+            dataOutputStream.writeUTF("Unsubscribed from topic " + topic);
+            EventLog.info("topic", this.alias, "User " + this.alias + " unsubscribed from topic " + topic);
+        } else {
+            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("NotSubscribed"));
+        }
+    }
+
+    private void handlePublish(String[] command) throws IOException {
+        String topic = command[1];
+        StringBuilder message = new StringBuilder();
+        for (int i = 2; i < command.length; i++) {
+            message.append(command[i]).append(" ");
+        }
+
+        // Only the topic's subscribers are visited, not every connected client
+        int delivered = 0;
+        for (String subscriber : this.server.topics.getSubscribers(topic)) {
+            if (subscriber.equals(this.alias)) {
+                continue;
+            }
+            Server.MsgClient msgClient = this.server.msgClients.get(subscriber);
+            if (msgClient == null) {
+                continue;
+            }
+            try {
+                msgClient.sendMsg(this.alias + " on #" + topic, message.toString());
+                delivered++;
+            } catch (IOException e) {
+                EventLog.error("topic", this.alias, "Error occurred while publishing to " + subscriber, e);
+            }
+        }
+        dataOutputStream.writeUTF("Message published to " + delivered + " subscribers of " + topic);
+        EventLog.info("topic", this.alias, "User " + this.alias + " published a message to topic " + topic);
+    }
+
     private Boolean handleUnregistered() {
         if (!this.isRegistered) {
             try {
-                System.out.println("Command Failed!");
+                EventLog.info("command", alias, "Command Failed!");
                 dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("Unregistered"));
                 return true;
             } catch (IOException e) {
-                e.printStackTrace();
+                EventLog.error("command", this.alias, "Error occurred while rejecting an unregistered command", e);
             }
         }
         return false;
     }
 
     private void handleStore(String fileName) throws IOException {
-        File file = new File(server.fileDirectory + fileName);
-
         synchronized (fileLock){
             long fileSize = dataInputStream.readLong();
             if (fileSize == -1){
-                System.out.println("Error: Client File not found");
+                EventLog.warn("transfer", this.alias, "Error: Client File not found");
+                return;
+            }
+            if (!FileStorage.isValidName(fileName)) {
+                EventLog.info("transfer", this.alias, "Rejected the file name " + fileName);
+                dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidFileName"));
                 return;
             }
 
+            // The storage is opened before READY, so a client that cannot be taken never starts sending
+            SessionRegistry.Upload upload;
+            try {
+                upload = new SessionRegistry.Upload(fileName, fileSize, this.server.storage.openWrite(fileName, fileSize));
+            } catch (IOException e) {
+                EventLog.error("transfer", this.alias, "Couldn't open storage for " + fileName, e);
+                dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("FileError"));
+                return;
+            }
             dataOutputStream.writeUTF("READY");  // Inform the client of ACK
+            EventLog.debug("transfer", this.alias, "Starting to receive the file " + fileName);
+            receiveUpload(upload);
+        }
+    }
 
-            try (FileOutputStream fos = new FileOutputStream(file)){
-                byte[] buffer = new byte[4 * 1024];
-                int bytesReceived = 0;
-
-                System.out.println("Starting to receive the file " + fileName);
-                while (fileSize > 0
-                        && (bytesReceived = dataInputStream.read(
-                        buffer, 0,
-                        (int) Math.min(buffer.length, fileSize)))
-                        != -1) {
-                    // Here we write the file using write method
-                    fos.write(buffer, 0, bytesReceived);
-                    fileSize -= bytesReceived; // read upto file size
+    // Picks up an upload that was cut off by a dropped connection where it stopped
+    private void handleContinue(String fileName) throws IOException {
+        synchronized (fileLock) {
+            SessionRegistry.Upload upload = this.session != null ? this.session.takeUpload(fileName) : null;
+            if (upload == null) {
+                dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("NoPendingUpload"));
+                return;
+            }
+            if (upload.hasFailed()) {
+                // Its storage stream is broken, so the rest must not be asked for
+                upload.discard();
+                dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("FileError"));
+                return;
+            }
+            dataOutputStream.writeUTF("READY");
+            dataOutputStream.writeLong(upload.getReceived());
+            EventLog.debug("transfer", this.alias, "Continuing " + fileName + " from byte " + upload.getReceived());
+            receiveUpload(upload);
+        }
+    }
+
+    // Throws away an interrupted upload the client is not going to continue, freeing its storage stream
+    private void handleDrop(String fileName) throws IOException {
+        SessionRegistry.Upload upload = this.session != null ? this.session.takeUpload(fileName) : null;
+        if (upload == null) {
+            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("NoPendingUpload"));
+            return;
+        }
+        upload.discard();
+        EventLog.info("transfer", this.alias, "Dropped the interrupted upload of " + fileName);
+        dataOutputStream.writeUTF("Dropped the interrupted upload of " + fileName + ".");
+    }
+
+    private void receiveUpload(SessionRegistry.Upload upload) throws IOException {
+        try {
+            byte[] buffer = new byte[4 * 1024];
+            int bytesReceived = 0;
+            long fileSize = upload.getRemaining();
+
+            if (clientSocket instanceof SecureSocket secureSocket) {
+                secureSocket.receiveFile(Channels.newChannel(upload), fileSize);
+                fileSize = 0;
+            }
+            while (fileSize > 0
+                    && (bytesReceived = dataInputStream.read(
+                    buffer, 0,
+                    (int) Math.min(buffer.length, fileSize)))
+                    != -1) {
+                // Here we write the file using write method
+                upload.write(buffer, 0, bytesReceived);
+                fileSize -= bytesReceived; // read upto file size
+            }
+            if (upload.getRemaining() > 0) {
+                throw new EOFException("Connection closed after " + upload.getReceived() + " of " + upload.size + " bytes");
+            }
+            upload.close();
+            this.server.searchIndex.add(upload.fileName);
+            EventLog.info("transfer", this.alias, this.alias + " uploaded " + upload.fileName);
+            dataOutputStream.writeUTF("File " + upload.fileName + " successfully uploaded.");
+        }
+        catch (IOException e) {
+            if (!upload.hasFailed() && upload.getRemaining() > 0 && this.session != null) {
+                // The connection broke, not the storage, so keep what arrived for /continue after /resume
+                this.session.addUpload(upload);
+                EventLog.warn("transfer", this.alias, "Upload of " + upload.fileName + " interrupted after "
+                        + upload.getReceived() + " of " + upload.size + " bytes");
+            } else {
+                upload.discard();
+                EventLog.error("transfer", this.alias, "Error occurred while transferring the file. Connection might be broken.", e);
+            }
+            dataOutputStream.writeUTF("Error occurred while transferring the file.");  // Inform the client
+        }
+    }
+
+    private void handleSend(String targetAlias, String fileName) throws IOException {
+        long fileSize = dataInputStream.readLong();
+        if (fileSize == -1) {
+            EventLog.warn("relay", this.alias, "Error: Client File not found");
+            return;
+        }
+        if (!FileStorage.isValidName(fileName)) {
+            EventLog.info("relay", this.alias, "Rejected the file name " + fileName);
+            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("InvalidFileName"));
+            return;
+        }
+
+        Server.MsgClient target = this.server.msgClients.get(targetAlias);
+        if (targetAlias.equals(this.alias) || !this.server.users.isRegistered(targetAlias) || target == null) {
+            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("UserOffline"));
+            return;
+        }
+
+        FileRelay.Transfer transfer = this.server.relay.offer(this.alias, targetAlias, fileName, fileSize);
+        try {
+            target.sendNotice(String.format("\n%s wants to send you %s (%d bytes). Use /accept %d or /decline %d.",
+                    this.alias, fileName, fileSize, transfer.id, transfer.id));
+        } catch (IOException e) {
+            // The recipient's message connection is broken, so they would never see the offer
+            this.server.relay.withdraw(transfer);
+            EventLog.error("relay", this.alias, "Could not offer " + fileName + " to " + targetAlias, e);
+            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("UserOffline"));
+            return;
+        }
+        try {
+            EventLog.info("relay", this.alias, this.alias + " offered " + fileName + " to " + targetAlias);
+            if (!transfer.awaitDecision(this.server.relay)) {
+                dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("SendDeclined"));
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("FileError"));
+            return;
+        }
+
+        dataOutputStream.writeUTF("READY");
+        boolean received = true;
+        byte[] discard = null;
+        try {
+            long remaining = fileSize;
+            while (remaining > 0) {
+                byte[] buffer = transfer.takeBuffer();
+                if (buffer == null) {
+                    // The recipient is gone; keep reading so the connection stays in step with the client
+                    discard = discard != null ? discard : new byte[4 * 1024];
+                    buffer = discard;
                 }
-                System.out.printf("\n%s %s: Uploaded %s\n", this.alias, getCurrentTime(), fileName);
-                dataOutputStream.writeUTF("File " + fileName + " successfully uploaded.");
+                int bytesRead = dataInputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("Sender closed the connection mid-transfer");
+                }
+                if (buffer != discard) {
+                    transfer.put(buffer, bytesRead);
+                }
+                remaining -= bytesRead;
+            }
+            transfer.finish(true);
+            received = transfer.awaitCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            transfer.finish(false);
+            received = false;
+        } catch (IOException e) {
+            transfer.finish(false);
+            throw e;
+        }
+
+        if (received) {
+            EventLog.info("relay", this.alias, this.alias + " sent " + fileName + " to " + targetAlias);
+            dataOutputStream.writeUTF("File " + fileName + " delivered to " + targetAlias + ".");
+        } else {
+            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("FileError"));
+        }
+    }
+
+    private void handleAccept(int offerId) throws IOException {
+        FileRelay.Transfer transfer = this.server.relay.claim(offerId, this.alias);
+        if (transfer == null || !transfer.accept()) {
+            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("OfferNotFound"));
+            return;
+        }
+
+        long remaining = transfer.size;
+        try {
+            // Inside the try so the sender is released if this connection is already broken
+            dataOutputStream.writeUTF("READY");
+            dataOutputStream.writeUTF(transfer.fileName);
+            dataOutputStream.writeLong(transfer.size);
+            FileRelay.Chunk chunk;
+            while ((chunk = transfer.take()) != null) {
+                dataOutputStream.write(chunk.data(), 0, chunk.length());
+                remaining -= chunk.length();
+                transfer.release(chunk.data());
             }
-            catch (IOException e) {
-                e.printStackTrace();
-                System.out.println("Error occurred while transferring the file. Connection might be broken.");
-                dataOutputStream.writeUTF("Error occurred while transferring the file.");  // Inform the client
+            transfer.complete(true);
+            dataOutputStream.writeUTF("File " + transfer.fileName + " received from " + transfer.sender + ".");
+        } catch (FileRelay.TransferFailedException e) {
+            // The recipient was promised the full size, so pad it out before reporting the failure
+            byte[] padding = new byte[4 * 1024];
+            while (remaining > 0) {
+                int length = (int) Math.min(padding.length, remaining);
+                dataOutputStream.write(padding, 0, length);
+                remaining -= length;
             }
+            transfer.complete(false);
+            EventLog.warn("relay", this.alias, e.getMessage());
+            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("FileError"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            transfer.complete(false);
+            throw new InterruptedIOException("Interrupted while relaying " + transfer.fileName);
+        } catch (IOException e) {
+            transfer.complete(false);
+            throw e;
+        }
+    }
+
+    private void handleDecline(int offerId) throws IOException {
+        FileRelay.Transfer transfer = this.server.relay.claim(offerId, this.alias);
+        if (transfer == null) {
+            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("OfferNotFound"));
+            return;
         }
+        transfer.decline();
+        dataOutputStream.writeUTF("Declined " + transfer.fileName + " from " + transfer.sender + ".");
     }
 
     private void handleGet(String fileName) throws IOException {
-        File file = new File(server.fileDirectory + File.separator + fileName);
-        System.out.println("Checking if file exists on server");
-        if(!file.exists()){
-            System.out.println("File not found on server");
+        EventLog.debug("transfer", this.alias, "Checking if file exists on server");
+        if(!this.server.storage.exists(fileName)){
+            EventLog.info("transfer", this.alias, "File " + fileName + " not found on server");
             dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("FileNotFound"));
             return;
         }
         else
             dataOutputStream.writeUTF("READY");
 
-        dataOutputStream.writeLong(file.length());
+        long fileLength = this.server.storage.length(fileName);
+        dataOutputStream.writeLong(fileLength);
+        sendStoredFile(fileName, fileLength);
+    }
 
-        if (file.length() == -1)
-        {
-            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("FileError"));
+    // Like /get, but answers NOT_MODIFIED without any data when the client's copy has the same ETag
+    private void handleConditionalGet(String etag, String fileName) throws IOException {
+        if(!this.server.storage.exists(fileName)){
+            EventLog.info("transfer", this.alias, "File " + fileName + " not found on server");
+            dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("FileNotFound"));
             return;
         }
 
+        String currentEtag = this.server.storage.etag(fileName);
+        if (currentEtag.equals(etag)) {
+            EventLog.debug("transfer", this.alias, "File " + fileName + " not modified for user " + this.alias + ".");
+            dataOutputStream.writeUTF("NOT_MODIFIED");
+            return;
+        }
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[4*1024]; // A buffer of 4KB
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                dataOutputStream.write(buffer, 0, bytesRead);
+        dataOutputStream.writeUTF("READY");
+        long fileLength = this.server.storage.length(fileName);
+        dataOutputStream.writeLong(fileLength);
+        dataOutputStream.writeUTF(currentEtag);
+        sendStoredFile(fileName, fileLength);
+    }
+
+    private void sendStoredFile(String fileName, long fileLength) throws IOException {
+        try (InputStream fis = this.server.storage.openRead(fileName)) {
+            if (clientSocket instanceof SecureSocket secureSocket) {
+                // Whole files go through their FileChannel; striped ones through the parallel reader
+                ReadableByteChannel source = fis instanceof FileInputStream fileStream
+                        ? fileStream.getChannel() : Channels.newChannel(fis);
+                secureSocket.sendFile(source, fileLength);
+            } else {
+                byte[] buffer = new byte[4*1024]; // A buffer of 4KB
+                int bytesRead;
+                while ((bytesRead = fis.read(buffer)) != -1) {
+                    dataOutputStream.write(buffer, 0, bytesRead);
+                }
             }
-            System.out.println("File " + fileName + " sent to user " + this.alias + ".");
+            EventLog.info("transfer", this.alias, "File " + fileName + " sent to user " + this.alias + ".");
             dataOutputStream.writeUTF("Server File: " + fileName + " successfully downloaded.");
         } catch (IOException e) {
-            e.printStackTrace();
+            EventLog.error("transfer", this.alias, "Error occurred while sending the file " + fileName, e);
             dataOutputStream.writeUTF(Error.ERROR_MESSAGES.get("FileError"));
         }
     }
@@ -385,15 +999,27 @@ public class ClientHandler implements Runnable {
                 "/dir - Request directory file list from a server. Example: /dir\n" +
                 "/store <filename> - Send file to server. Example: /store Hello.txt\n" +
                 "/get <filename> - Fetch a file from a server. Example: /get Hello.txt\n" +
+                "/resume <token> - Take back a session after a dropped connection (done automatically). Example: /resume 3f9a...\n" +
+                "/continue <filename> - Finish an upload that a dropped connection cut off (done automatically). Example: /continue Hello.txt\n" +
+                "/drop <filename> - Give up an upload that a dropped connection cut off (done automatically). Example: /drop Hello.txt\n" +
+                "/sync [filename] - Re-fetch downloaded files, or just the one named, that changed on the server. Example: /sync Hello.txt\n" +
+                "/send <user> <filename> - Send a file straight to another user. Example: /send User1 Hello.txt\n" +
+                "/accept <number> - Accept a file another user is sending you. Example: /accept 1\n" +
+                "/decline <number> - Decline a file another user is sending you. Example: /decline 1\n" +
+                "/find <pattern> [limit] - Search file names by substring, prefix* or glob. Example: /find *.txt 20\n" +
                 "/leave - Disconnect from the server application. Example: /leave\n\n" +
                 "Messaging Commands:\n" +
-                "/userlist - List all users connected to the server. Example: /userlist\n" +
+                "/userlist [version] - List all users connected to the server. Example: /userlist\n" +
+                "/presence <on|off> - Get notified when users join or leave. Example: /presence on\n" +
                 "/message <user> <message> - Send a message to a specific user. Example: /message User1 Hello!\n" +
-                "/broadcast <message> - Send a message to all users. Example: /broadcast Hello!\n";
+                "/broadcast <message> - Send a message to all users. Example: /broadcast Hello!\n" +
+                "/subscribe <topic> - Receive messages published to a topic. Example: /subscribe team1\n" +
+                "/unsubscribe <topic> - Stop receiving messages from a topic. Example: /unsubscribe team1\n" +
+                "/publish <topic> <message> - Send a message to a topic's subscribers. Example: /publish team1 Hello!\n";
         try {
             dataOutputStream.writeUTF(helpText);
         } catch (IOException e) {
-            e.printStackTrace();
+            EventLog.error("command", this.alias, "Error occurred while sending the help text", e);
         }
     }
 }
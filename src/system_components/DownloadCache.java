@@ -0,0 +1,86 @@
+package system_components;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Client-side record of the files downloaded into user_files: size, modification time and the
+ * server's ETag for each. A recorded ETag is only offered to the server while the local file
+ * still has the recorded size and modification time, so a locally edited copy is downloaded again.
+ */
+public class DownloadCache {
+    private static final String CACHE_FILE = ".download_cache";
+
+    private final File directory;
+    private final File cacheFile;
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    private record Entry(long size, long modified, String etag) {}
+
+    public DownloadCache(File directory) {
+        this.directory = directory;
+        this.cacheFile = new File(directory, CACHE_FILE);
+        load();
+    }
+
+    // The ETag to send with a conditional get, or "-" when there is no valid local copy
+    public String etagFor(String fileName) {
+        Entry entry = entries.get(fileName);
+        File file = new File(directory, fileName);
+        if (entry == null || !file.isFile() || file.length() != entry.size() || file.lastModified() != entry.modified()) {
+            return "-";
+        }
+        return entry.etag();
+    }
+
+    public void record(String fileName, String etag) {
+        File file = new File(directory, fileName);
+        entries.put(fileName, new Entry(file.length(), file.lastModified(), etag));
+        save();
+    }
+
+    public void forget(String fileName) {
+        if (entries.remove(fileName) != null) {
+            save();
+        }
+    }
+
+    public List<String> getFileNames() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    private void load() {
+        if (!cacheFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                entries.put(in.readUTF(), new Entry(in.readLong(), in.readLong(), in.readUTF()));
+            }
+        } catch (IOException e) {
+            // A damaged cache only costs full downloads
+            entries.clear();
+        }
+    }
+
+    private void save() {
+        File temp = new File(directory, CACHE_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().size());
+                out.writeLong(entry.getValue().modified());
+                out.writeUTF(entry.getValue().etag());
+            }
+        } catch (IOException e) {
+            System.out.println("Error: Couldn't save the download cache: " + e.getMessage());
+            return;
+        }
+        if (!temp.renameTo(cacheFile)) {
+            cacheFile.delete();
+            temp.renameTo(cacheFile);
+        }
+    }
+}
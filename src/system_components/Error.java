@@ -18,5 +18,12 @@ public class Error {
         ERROR_MESSAGES.put("UnknownCommand", "\nError: Command not found.");
         ERROR_MESSAGES.put("InvalidParameters", "\nError: Command parameters do not match or is not allowed.");
         ERROR_MESSAGES.put("MessageFailed", "\nError: Failed to send message.");
+        ERROR_MESSAGES.put("UserOffline", "\nError: Target user is not online.");
+        ERROR_MESSAGES.put("SendDeclined", "\nError: The recipient declined the file or did not answer in time.");
+        ERROR_MESSAGES.put("OfferNotFound", "\nError: No pending file with that number was sent to you.");
+        ERROR_MESSAGES.put("SessionExpired", "\nError: Session expired or not found. Please register again.");
+        ERROR_MESSAGES.put("NoPendingUpload", "\nError: No interrupted upload of that file to continue.");
+        ERROR_MESSAGES.put("InvalidFileName", "\nError: File names cannot contain / or \\ or be . or ..");
+        ERROR_MESSAGES.put("NotSubscribed", "\nError: You are not subscribed to that topic.");
     }
 }
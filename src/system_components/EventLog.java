@@ -0,0 +1,306 @@
+package system_components;
+
+import java.io.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous event log for the server.
+ * Handler threads only claim a slot in a lock-free ring buffer and store the raw event fields;
+ * formatting and file I/O happen on a background writer thread. When the ring is full events are
+ * dropped and counted instead of blocking the caller.
+ * <p>
+ * Configured with system properties: {@code fes.logdir} (default ./server_logs),
+ * {@code fes.loglevel} (DEBUG, INFO, WARN or ERROR, default INFO), {@code fes.logconsole}
+ * (echo messages to the console, default true) and {@code fes.logsample}, a list such as
+ * {@code transfer:10,command:100} that keeps one event in n for the given types.
+ */
+public final class EventLog {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+    private static final long MAX_FILE_SIZE = 10L * 1024 * 1024;
+    private static final int MAX_FILES = 5;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    // Slot i is free for producer position p when sequence == p, and readable when sequence == p + 1
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final long[] times = new long[CAPACITY];
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final String[] types = new String[CAPACITY];
+    private static final String[] aliases = new String[CAPACITY];
+    private static final String[] messages = new String[CAPACITY];
+    private static final Throwable[] errors = new Throwable[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Map<String, Sampler> samplers = new ConcurrentHashMap<>();
+
+    private static volatile Level minLevel = Level.INFO;
+    private static volatile boolean console = true;
+    private static volatile boolean running = true;
+    private static final File directory;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        directory = new File(System.getProperty("fes.logdir", "./server_logs"));
+        // A bad setting must not fail the class, or every later log call would throw NoClassDefFoundError
+        String level = System.getProperty("fes.loglevel", "INFO");
+        try {
+            minLevel = Level.valueOf(level.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring fes.loglevel=" + level + ", expected DEBUG, INFO, WARN or ERROR; using INFO");
+        }
+        console = Boolean.parseBoolean(System.getProperty("fes.logconsole", "true"));
+        String sampling = System.getProperty("fes.logsample", "");
+        for (String rule : sampling.split(",")) {
+            String[] parts = rule.split(":");
+            if (parts.length == 2) {
+                try {
+                    setSampling(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+                    continue;
+                } catch (NumberFormatException e) {
+                    // Reported below
+                }
+            }
+            if (!rule.isBlank()) {
+                System.err.println("Ignoring fes.logsample rule " + rule + ", expected type:n");
+            }
+        }
+
+        writer = new Thread(EventLog::drain, "event-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::shutdown));
+    }
+
+    private EventLog() {}
+
+    public static void setLevel(Level level) {
+        minLevel = level;
+    }
+
+    // Keeps one in every oneIn events of the type; 1 or less keeps all of them
+    public static void setSampling(String type, int oneIn) {
+        if (oneIn <= 1) {
+            samplers.remove(type);
+        } else {
+            samplers.put(type, new Sampler(oneIn));
+        }
+    }
+
+    public static void debug(String type, String alias, String message) {
+        log(Level.DEBUG, type, alias, message, null);
+    }
+
+    public static void info(String type, String alias, String message) {
+        log(Level.INFO, type, alias, message, null);
+    }
+
+    public static void warn(String type, String alias, String message) {
+        log(Level.WARN, type, alias, message, null);
+    }
+
+    public static void error(String type, String alias, String message) {
+        log(Level.ERROR, type, alias, message, null);
+    }
+
+    public static void error(String type, String alias, String message, Throwable error) {
+        log(Level.ERROR, type, alias, message, error);
+    }
+
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    // Waits for the writer to catch up and stops it
+    public static void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void log(Level level, String type, String alias, String message, Throwable error) {
+        if (level.ordinal() < minLevel.ordinal()) {
+            return;
+        }
+        if (!samplers.isEmpty()) {
+            Sampler sampler = samplers.get(type);
+            if (sampler != null && !sampler.keep()) {
+                return;
+            }
+        }
+
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) (position & MASK);
+            long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // The writer has not freed this slot yet, so the ring is full
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        times[slot] = System.currentTimeMillis();
+        levels[slot] = level;
+        types[slot] = type;
+        aliases[slot] = alias;
+        messages[slot] = message;
+        errors[slot] = error;
+        sequences.lazySet(slot, position + 1);
+    }
+
+    private static void drain() {
+        long head = 0;
+        long reportedDrops = 0;
+        Writer out = null;
+        long fileSize = 0;
+        StringBuilder line = new StringBuilder(256);
+        long lastTime = -1;
+        String lastStamp = "";
+
+        while (true) {
+            int slot = (int) (head & MASK);
+            if (sequences.get(slot) != head + 1) {
+                try {
+                    if (out != null) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    out = null;
+                }
+                if (!running) {
+                    break;
+                }
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    warn("log", null, "Dropped " + (drops - reportedDrops) + " events, the log buffer was full");
+                    reportedDrops = drops;
+                }
+                LockSupport.parkNanos(1_000_000);
+                continue;
+            }
+
+            line.setLength(0);
+            if (times[slot] != lastTime) {
+                lastTime = times[slot];
+                lastStamp = TIME_FORMAT.format(Instant.ofEpochMilli(lastTime));
+            }
+            line.append(lastStamp).append(" level=").append(levels[slot])
+                    .append(" type=").append(types[slot]);
+            if (aliases[slot] != null) {
+                line.append(" user=\"").append(aliases[slot]).append('"');
+            }
+            line.append(" msg=\"");
+            appendEscaped(line, messages[slot]);
+            line.append('"');
+            Throwable error = errors[slot];
+            if (error != null) {
+                StringWriter trace = new StringWriter();
+                error.printStackTrace(new PrintWriter(trace));
+                line.append('\n').append(trace.toString().stripTrailing());
+            }
+            line.append('\n');
+
+            if (console) {
+                System.out.println(aliases[slot] != null && !messages[slot].contains(aliases[slot])
+                        ? aliases[slot] + ": " + messages[slot] : messages[slot]);
+            }
+            errors[slot] = null;
+            messages[slot] = null;
+            sequences.lazySet(slot, head + CAPACITY);
+            head++;
+
+            try {
+                if (out == null || fileSize >= MAX_FILE_SIZE) {
+                    if (out != null) {
+                        out.close();
+                    }
+                    out = openLogFile();
+                    fileSize = 0;
+                }
+                out.append(line);
+                fileSize += line.length();
+            } catch (IOException e) {
+                // Keep draining so producers are never stuck on a broken log file
+                out = null;
+            }
+        }
+
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            // Nothing left to report it to
+        }
+    }
+
+    private static void appendEscaped(StringBuilder line, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                line.append("\\n");
+            } else if (c == '"') {
+                line.append("\\\"");
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    // Rotates server.log to server.log.1 and so on, dropping the oldest
+    private static Writer openLogFile() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create log directory " + directory.getPath());
+        }
+        File current = new File(directory, "server.log");
+        if (current.exists() && current.length() > 0) {
+            new File(directory, "server.log." + MAX_FILES).delete();
+            for (int i = MAX_FILES - 1; i >= 1; i--) {
+                File older = new File(directory, "server.log." + i);
+                if (older.exists()) {
+                    older.renameTo(new File(directory, "server.log." + (i + 1)));
+                }
+            }
+            current.renameTo(new File(directory, "server.log.1"));
+        }
+        return new BufferedWriter(new FileWriter(current), 64 * 1024);
+    }
+
+    private static class Sampler {
+        private final int oneIn;
+        private final AtomicLong count = new AtomicLong();
+
+        Sampler(int oneIn) {
+            this.oneIn = oneIn;
+        }
+
+        boolean keep() {
+            return count.getAndIncrement() % oneIn == 0;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package system_components;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pending and running /send transfers. A transfer streams the sender's upload straight to the
+ * recipient's connection through a small pool of relay buffers and never touches the server disk.
+ * The sender can only get as far ahead as the free buffers allow, so a slow recipient slows the
+ * sender down instead of filling the server's memory.
+ */
+public class FileRelay {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int WINDOW = 8;
+    private static final long DECISION_TIMEOUT_SECONDS = 60;
+    private static final long POLL_MILLIS = 200;
+
+    private final Map<Integer, Transfer> offers = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    public Transfer offer(String sender, String recipient, String fileName, long size) {
+        Transfer transfer = new Transfer(nextId.getAndIncrement(), sender, recipient, fileName, size);
+        offers.put(transfer.id, transfer);
+        return transfer;
+    }
+
+    // Hands the offer to its recipient once; null if it does not exist, expired or is for someone else
+    public Transfer claim(int id, String recipient) {
+        Transfer transfer = offers.get(id);
+        if (transfer == null || !transfer.recipient.equals(recipient) || !offers.remove(id, transfer)) {
+            return null;
+        }
+        return transfer;
+    }
+
+    // Takes back an offer whose recipient could not be told about it
+    public void withdraw(Transfer transfer) {
+        offers.remove(transfer.id, transfer);
+        transfer.decline();
+    }
+
+    public static class Transfer {
+        private static final Chunk DONE = new Chunk(null, 0);
+        private static final Chunk FAILED = new Chunk(null, -1);
+
+        final int id;
+        final String sender;
+        final String recipient;
+        final String fileName;
+        final long size;
+
+        private final CompletableFuture<Boolean> decision = new CompletableFuture<>();
+        private final CompletableFuture<Boolean> completion = new CompletableFuture<>();
+        private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(WINDOW + 1);
+        private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(WINDOW);
+        private volatile boolean aborted = false;
+
+        Transfer(int id, String sender, String recipient, String fileName, long size) {
+            this.id = id;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.fileName = fileName;
+            this.size = size;
+        }
+
+        // False if the sender already gave up waiting
+        public boolean accept() {
+            for (int i = 0; i < WINDOW; i++) {
+                free.add(new byte[CHUNK_SIZE]);
+            }
+            return decision.complete(true);
+        }
+
+        public void decline() {
+            decision.complete(false);
+        }
+
+        // Sender side: false if the recipient declined or did not answer in time
+        public boolean awaitDecision(FileRelay relay) throws InterruptedException {
+            try {
+                return decision.get(DECISION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                relay.offers.remove(id, this);
+                // The recipient may have claimed it just now; whichever completes first wins
+                decision.complete(false);
+                return decision.getNow(false);
+            } catch (ExecutionException e) {
+                return false;
+            }
+        }
+
+        // Sender side: blocks until a relay buffer is free, or returns null once the recipient is gone
+        public byte[] takeBuffer() throws InterruptedException {
+            while (!aborted) {
+                byte[] buffer = free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (buffer != null) {
+                    return buffer;
+                }
+            }
+            return null;
+        }
+
+        public void put(byte[] buffer, int length) throws InterruptedException {
+            filled.put(new Chunk(buffer, length));
+        }
+
+        public void finish(boolean success) {
+            // There is always room for the end marker since filled holds one more than the window
+            filled.offer(success ? DONE : FAILED);
+        }
+
+        // Sender side: waits for the recipient to write the last byte
+        public boolean awaitCompletion() throws InterruptedException {
+            try {
+                return completion.get();
+            } catch (ExecutionException e) {
+                return false;
+            }
+        }
+
+        // Recipient side: the next chunk, or null at the end; a failed sender raises an exception
+        public Chunk take() throws InterruptedException, TransferFailedException {
+            Chunk chunk = filled.take();
+            if (chunk == FAILED) {
+                throw new TransferFailedException();
+            }
+            return chunk == DONE ? null : chunk;
+        }
+
+        public void release(byte[] buffer) {
+            free.offer(buffer);
+        }
+
+        public void complete(boolean success) {
+            if (!success) {
+                aborted = true;
+            }
+            completion.complete(success);
+        }
+    }
+
+    public record Chunk(byte[] data, int length) {}
+
+    public static class TransferFailedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        TransferFailedException() {
+            super("Sender stopped before the whole file was relayed");
+        }
+    }
+}
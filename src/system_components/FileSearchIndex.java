@@ -0,0 +1,507 @@
+package system_components;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory search index over the names of the stored files, used by /find.
+ * Names are kept as an id array sorted by name, so a prefix is a binary search. Posting lists of
+ * every 1, 2 and 3 character gram, plus of the last 1 to 3 characters of each name, narrow
+ * substring and glob queries down to the names containing the query's literals (and ending with
+ * its last one, as in {@code *.c}) before they are checked. Names are also listed by length for
+ * globs without a *. A glob with a literal start runs over the prefix range instead when that is
+ * smaller. Matching ignores case.
+ * <p>
+ * Adding a name never waits for a search: names are queued and folded in by whichever add or
+ * search next gets the write lock. New names go to a small sorted run that is merged into the
+ * main array once it fills up, so an add does not copy the whole array.
+ */
+public class FileSearchIndex {
+    private static final int MAX_GRAM = 3;
+    private static final int RECENT_LIMIT = 4096;
+    private static final long END = 4;
+    private static final long LENGTH = 8L << 48;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final List<String> names = new ArrayList<>();
+    private final List<String> lowerNames = new ArrayList<>();
+    private int[] byName = new int[0];
+    private int[] recent = new int[0];
+    private final IntList[] unigrams = new IntList[Character.MAX_VALUE + 1];
+    private final GramMap grams = new GramMap();
+
+    public void add(String name) {
+        pending.add(name);
+        applyPending();
+    }
+
+    // Builds the index from scratch in one pass; much faster than adding the names one by one
+    public void addAll(Collection<String> all) {
+        lock.writeLock().lock();
+        try {
+            Set<String> known = new HashSet<>(names);
+            for (String name : all) {
+                if (known.add(name)) {
+                    append(name);
+                }
+            }
+            mergeRecent();
+            record Keyed(String lower, String name, int id) {}
+            Keyed[] keyed = new Keyed[names.size()];
+            for (int id = 0; id < keyed.length; id++) {
+                keyed[id] = new Keyed(lowerNames.get(id), names.get(id), id);
+            }
+            Arrays.sort(keyed, (a, b) -> compareNames(a.lower(), a.name(), b.lower(), b.name()));
+            byName = new int[keyed.length];
+            for (int i = 0; i < keyed.length; i++) {
+                byName[i] = keyed[i].id();
+            }
+            for (IntList list : unigrams) {
+                if (list != null) {
+                    list.trim();
+                }
+            }
+            grams.trim();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // A trailing * alone is a prefix search, other wildcards make a glob, anything else is a substring
+    public List<String> find(String query, int limit) {
+        String lower = query.toLowerCase(Locale.ROOT);
+        int wildcard = indexOfWildcard(lower);
+        if (wildcard == -1) {
+            return findSubstring(lower, limit);
+        }
+        if (wildcard == lower.length() - 1 && lower.endsWith("*")) {
+            return findPrefix(lower.substring(0, lower.length() - 1), limit);
+        }
+        return findGlob(lower, limit);
+    }
+
+    public List<String> findPrefix(String prefix, int limit) {
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        applyPending();
+        lock.readLock().lock();
+        try {
+            List<String> results = new ArrayList<>();
+            // Both runs are sorted, so merging them keeps the results in name order
+            int i = lowerBound(byName, id -> lowerNames.get(id).compareTo(lower) >= 0);
+            int j = lowerBound(recent, id -> lowerNames.get(id).compareTo(lower) >= 0);
+            while (results.size() < limit) {
+                boolean mainLeft = i < byName.length && lowerNames.get(byName[i]).startsWith(lower);
+                boolean recentLeft = j < recent.length && lowerNames.get(recent[j]).startsWith(lower);
+                if (!mainLeft && !recentLeft) {
+                    break;
+                }
+                if (mainLeft && (!recentLeft || compareNames(byName[i], recent[j]) < 0)) {
+                    results.add(names.get(byName[i++]));
+                } else {
+                    results.add(names.get(recent[j++]));
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<String> findSubstring(String text, int limit) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        applyPending();
+        lock.readLock().lock();
+        try {
+            List<String> results = new ArrayList<>();
+            IntList[] postings = postingsFor(List.of(lower), "", -1);
+            if (postings == null) {
+                // Empty query
+                scanAll(limit, results, id -> true);
+                return results;
+            }
+            forEachCandidate(postings, limit, results, id -> lowerNames.get(id).contains(lower));
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<String> findGlob(String glob, int limit) {
+        String lower = glob.toLowerCase(Locale.ROOT);
+        Pattern pattern = globToPattern(lower);
+        // Every character but * stands for exactly one, which rules most names out before the regex runs
+        int minLength = lower.replace("*", "").length();
+        boolean exactLength = lower.indexOf('*') == -1;
+        IntPredicate matches = id -> {
+            int length = lowerNames.get(id).length();
+            return (exactLength ? length == minLength : length >= minLength) && pattern.matcher(lowerNames.get(id)).matches();
+        };
+        String[] literals = lower.split("[*?]", -1);
+        String head = literals[0];
+        String tail = literals[literals.length - 1];
+        applyPending();
+        lock.readLock().lock();
+        try {
+            List<String> results = new ArrayList<>();
+            IntList[] postings = postingsFor(Arrays.asList(literals), tail, exactLength ? minLength : -1);
+            long gramCount = postings != null ? postings[0].size : Long.MAX_VALUE;
+
+            if (!head.isEmpty()) {
+                int from = lowerBound(byName, id -> lowerNames.get(id).compareTo(head) >= 0);
+                int to = lowerBound(byName, id -> lowerNames.get(id).compareTo(head) >= 0 && !lowerNames.get(id).startsWith(head));
+                if (to - from <= gramCount) {
+                    for (int i = from; i < to && results.size() < limit; i++) {
+                        if (matches.test(byName[i])) {
+                            results.add(names.get(byName[i]));
+                        }
+                    }
+                    for (int i = 0; i < recent.length && results.size() < limit; i++) {
+                        if (matches.test(recent[i])) {
+                            results.add(names.get(recent[i]));
+                        }
+                    }
+                    return results;
+                }
+            }
+            if (postings != null) {
+                forEachCandidate(postings, limit, results, matches);
+            } else {
+                // Only * wildcards, so every name is a candidate
+                scanAll(limit, results, matches);
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Folds queued names in if nobody else holds the lock; otherwise the next add or search will
+    private void applyPending() {
+        if (pending.isEmpty() || !lock.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            String name;
+            while ((name = pending.poll()) != null) {
+                insert(name);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void insert(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        IntPredicate atOrAfter = id -> compareNames(lowerNames.get(id), names.get(id), lower, name) >= 0;
+        int at = lowerBound(byName, atOrAfter);
+        if (at < byName.length && names.get(byName[at]).equals(name)) {
+            return;
+        }
+        int recentAt = lowerBound(recent, atOrAfter);
+        if (recentAt < recent.length && names.get(recent[recentAt]).equals(name)) {
+            return;
+        }
+        recent = insertAt(recent, recentAt, append(name));
+        if (recent.length >= RECENT_LIMIT) {
+            mergeRecent();
+        }
+    }
+
+    private void mergeRecent() {
+        int[] merged = new int[byName.length + recent.length];
+        int i = 0, j = 0, k = 0;
+        while (i < byName.length || j < recent.length) {
+            if (j == recent.length || (i < byName.length && compareNames(byName[i], recent[j]) < 0)) {
+                merged[k++] = byName[i++];
+            } else {
+                merged[k++] = recent[j++];
+            }
+        }
+        byName = merged;
+        recent = new int[0];
+    }
+
+    private int append(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        int id = names.size();
+        names.add(name);
+        lowerNames.add(lower);
+        // Postings stay sorted and duplicate free since ids only grow
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (unigrams[c] == null) {
+                unigrams[c] = new IntList();
+            }
+            addPosting(unigrams[c], id);
+        }
+        for (int n = 2; n <= MAX_GRAM; n++) {
+            for (int i = 0; i + n <= lower.length(); i++) {
+                addPosting(grams.getOrCreate(gram(lower, i, n)), id);
+            }
+        }
+        for (int n = 1; n <= MAX_GRAM && n <= lower.length(); n++) {
+            grams.getOrCreate(endGram(lower, n)).add(id);
+        }
+        grams.getOrCreate(LENGTH | lower.length()).add(id);
+        return id;
+    }
+
+    private static void addPosting(IntList postings, int id) {
+        if (postings.size == 0 || postings.last() != id) {
+            postings.add(id);
+        }
+    }
+
+    /*
+     * Posting lists of the longest grams each literal has, of the names ending the way tail does
+     * and of the names of the given length unless it is -1, rarest first; null if that leaves
+     * nothing to narrow by. A gram or length no name has yields one empty list.
+     */
+    private IntList[] postingsFor(List<String> literals, String tail, int length) {
+        List<IntList> postings = new ArrayList<>();
+        for (String literal : literals) {
+            int n = Math.min(literal.length(), MAX_GRAM);
+            for (int i = 0; n > 0 && i + n <= literal.length(); i++) {
+                IntList list = n == 1 ? unigrams[literal.charAt(i)] : grams.get(gram(literal, i, n));
+                if (list == null) {
+                    return new IntList[]{new IntList()};
+                }
+                postings.add(list);
+            }
+        }
+        if (!tail.isEmpty()) {
+            IntList list = grams.get(endGram(tail, Math.min(tail.length(), MAX_GRAM)));
+            if (list == null) {
+                return new IntList[]{new IntList()};
+            }
+            postings.add(list);
+        }
+        if (length != -1) {
+            IntList list = grams.get(LENGTH | length);
+            if (list == null) {
+                return new IntList[]{new IntList()};
+            }
+            postings.add(list);
+        }
+        if (postings.isEmpty()) {
+            return null;
+        }
+        postings.sort(Comparator.comparingInt(list -> list.size));
+        return postings.toArray(new IntList[0]);
+    }
+
+    // Walks the rarest list and only checks names that every other list also contains
+    private void forEachCandidate(IntList[] postings, int limit, List<String> results, IntPredicate check) {
+        IntList rarest = postings[0];
+        int[] cursors = new int[postings.length];
+        candidates:
+        for (int i = 0; i < rarest.size && results.size() < limit; i++) {
+            int id = rarest.values[i];
+            for (int j = 1; j < postings.length; j++) {
+                // Lists are sorted and ids only grow here, so each cursor gallops forward
+                cursors[j] = gallop(postings[j], cursors[j], id);
+                if (cursors[j] >= postings[j].size) {
+                    return;
+                }
+                if (postings[j].values[cursors[j]] != id) {
+                    continue candidates;
+                }
+            }
+            if (check.test(id)) {
+                results.add(names.get(id));
+            }
+        }
+    }
+
+    private void scanAll(int limit, List<String> results, IntPredicate check) {
+        for (int id = 0; id < names.size() && results.size() < limit; id++) {
+            if (check.test(id)) {
+                results.add(names.get(id));
+            }
+        }
+    }
+
+    // Index of the first value at or after from that is not less than target
+    private static int gallop(IntList list, int from, int target) {
+        int step = 1;
+        int low = from;
+        int high = from;
+        while (high < list.size && list.values[high] < target) {
+            low = high + 1;
+            high = from + step;
+            step <<= 1;
+        }
+        high = Math.min(high, list.size);
+        int index = Arrays.binarySearch(list.values, low, high, target);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    // First position in the sorted ids whose name satisfies atOrAfter, which must be monotonic over the order
+    private static int lowerBound(int[] order, IntPredicate atOrAfter) {
+        int low = 0;
+        int high = order.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (atOrAfter.test(order[mid])) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private static int[] insertAt(int[] values, int at, int value) {
+        int[] updated = new int[values.length + 1];
+        System.arraycopy(values, 0, updated, 0, at);
+        updated[at] = value;
+        System.arraycopy(values, at, updated, at + 1, values.length - at);
+        return updated;
+    }
+
+    private int compareNames(int a, int b) {
+        return compareNames(lowerNames.get(a), names.get(a), lowerNames.get(b), names.get(b));
+    }
+
+    // Names differing only in case sit next to each other, ordered by their original spelling
+    private static int compareNames(String lowerA, String nameA, String lowerB, String nameB) {
+        int order = lowerA.compareTo(lowerB);
+        return order != 0 ? order : nameA.compareTo(nameB);
+    }
+
+    // The gram length is kept in the top bits so grams of different lengths never share a key
+    private static long gram(String text, int start, int n) {
+        long key = n;
+        for (int i = start; i < start + n; i++) {
+            key = (key << 16) | text.charAt(i);
+        }
+        return key;
+    }
+
+    // The last n characters of a name; the flag next to the length keeps it apart from a plain gram
+    private static long endGram(String text, int n) {
+        return gram(text, text.length() - n, n) | (END << 16 * n);
+    }
+
+    private static int indexOfWildcard(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static class IntList {
+        private int[] values = new int[2];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + (size >> 1) + 1);
+            }
+            values[size++] = value;
+        }
+
+        int last() {
+            return values[size - 1];
+        }
+
+        void trim() {
+            if (values.length != size) {
+                values = Arrays.copyOf(values, size);
+            }
+        }
+    }
+
+    // Open addressing map from gram key to postings, so lookups do not box a Long per gram
+    private static class GramMap {
+        private long[] keys = new long[1 << 16];
+        private IntList[] values = new IntList[1 << 16];
+        private int size = 0;
+
+        IntList get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        IntList getOrCreate(long key) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            IntList list = new IntList();
+            keys[i] = key;
+            values[i] = list;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+            return list;
+        }
+
+        void trim() {
+            for (IntList list : values) {
+                if (list != null) {
+                    list.trim();
+                }
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            IntList[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new IntList[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = slot(oldKeys[j], mask);
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32) & mask;
+        }
+    }
+}
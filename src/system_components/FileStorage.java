@@ -0,0 +1,882 @@
+package system_components;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server file storage spread over one or more directories, normally one per disk.
+ * Small files are stored whole on the directory with the most free space and the fewest
+ * transfers in progress. Large files are striped: consecutive units go round-robin to each
+ * directory, and reads fetch the next unit from every directory in parallel.
+ * <p>
+ * Everything lives under a hidden {@value #SHARD_DIR} directory on each volume, fanned out over
+ * 65536 subdirectories by a hash of the file name ({@code files/3f/a0/name}), so no directory
+ * grows past a few hundred entries however many files are stored. Whole files go under
+ * {@code files}, stripe units under {@code stripes} and the manifest recording a striped file's
+ * size and volume order under {@code manifests} on its first volume. The content digest of each
+ * file is kept under {@code etags} on its first volume, stamped with the size and modification
+ * time of the file it was taken from, so it survives restarts. Directories written before
+ * sharding (files in the volume root, stripes in {@code .stripes}) are still read and are moved
+ * into shards by {@link #migrate()}.
+ * <p>
+ * Each volume is locked while the storage is open, so a second server or {@code Main_Migrate}
+ * cannot clear its uploads or move its files from under a running one.
+ */
+public class FileStorage {
+    private static final long STRIPE_THRESHOLD = 64L * 1024 * 1024;
+    private static final int STRIPE_UNIT = 1024 * 1024;
+    private static final String SHARD_DIR = ".shards";
+    private static final String FILES = "files";
+    private static final String STRIPES = "stripes";
+    private static final String MANIFESTS = "manifests";
+    private static final String UPLOADS = "uploads";
+    private static final String ETAGS = "etags";
+    private static final String LOCK = "lock";
+    private static final String FLAT_STRIPE_DIR = ".stripes";
+    private static final String FLAT_MANIFEST_SUFFIX = ".manifest";
+
+    private final List<Volume> volumes = new ArrayList<>();
+    // Every change to an entry and to the files behind it happens inside compute on its key
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final NavigableSet<String> names = new ConcurrentSkipListSet<>();
+    private final AtomicLong uploadIds = new AtomicLong();
+    private final ExecutorService ioExecutor;
+
+    public FileStorage(List<File> roots) throws IOException {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("At least one storage directory is needed");
+        }
+        try {
+            for (File root : roots) {
+                Volume volume = new Volume(root);
+                Files.createDirectories(volume.uploads.toPath());
+                volume.lock();
+                volumes.add(volume);
+                // Uploads that were cut off by a crash are never resumed
+                File[] leftovers = volume.uploads.listFiles();
+                if (leftovers != null) {
+                    for (File leftover : leftovers) {
+                        leftover.delete();
+                    }
+                }
+            }
+            loadIndex();
+        } catch (IOException | RuntimeException e) {
+            unlockVolumes();
+            throw e;
+        }
+        ioExecutor = Executors.newFixedThreadPool(2 * volumes.size(), runnable -> {
+            Thread thread = new Thread(runnable, "storage-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void close() {
+        ioExecutor.shutdown();
+        unlockVolumes();
+    }
+
+    private void unlockVolumes() {
+        for (Volume volume : volumes) {
+            volume.unlock();
+        }
+    }
+
+    public List<String> list() {
+        return new ArrayList<>(names);
+    }
+
+    public boolean exists(String name) {
+        return index.containsKey(name);
+    }
+
+    public long length(String name) throws FileNotFoundException {
+        return getEntry(name).size();
+    }
+
+    /*
+     * Content digest used by conditional /get. For files found at startup it is read back from
+     * the etags tree, and only computed if it was never stored or the file has changed since.
+     */
+    public String etag(String name) throws IOException {
+        Entry entry = getEntry(name);
+        if (entry.etag() != null) {
+            return entry.etag();
+        }
+        String stored = readEtag(name, entry);
+        if (stored != null) {
+            index.computeIfPresent(name, (key, current) -> current == entry ? entry.withEtag(stored) : current);
+            return stored;
+        }
+        File stamped = stampedFile(name, entry);
+        long stampedLength = stamped.length();
+        long stampedTime = stamped.lastModified();
+        MessageDigest digest = newDigest();
+        try (InputStream in = openRead(name)) {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+        }
+        String etag = toHex(digest.digest());
+        // Only keep it if the file was not replaced while it was being hashed
+        index.computeIfPresent(name, (key, current) -> {
+            if (current != entry) {
+                return current;
+            }
+            try {
+                File temp = newEtagFile(entry.volumes()[0], stampedLength, stampedTime, etag);
+                File target = etagFile(key, entry);
+                Files.createDirectories(target.getParentFile().toPath());
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                EventLog.warn("storage", null, "Couldn't store the ETag of " + key + ": " + e.getMessage());
+            }
+            return entry.withEtag(etag);
+        });
+        return etag;
+    }
+
+    public InputStream openRead(String name) throws IOException {
+        Entry entry = getEntry(name);
+        try {
+            return open(name, entry);
+        } catch (FileNotFoundException e) {
+            // Migrated or replaced between the lookup and the open; the new entry has the right place
+            Entry current = getEntry(name);
+            if (current == entry) {
+                throw e;
+            }
+            return open(name, current);
+        }
+    }
+
+    private InputStream open(String name, Entry entry) throws IOException {
+        if (!entry.striped()) {
+            int volume = entry.volumes()[0];
+            return new TrackedInputStream(dataFile(volume, name, entry), volumes.get(volume));
+        }
+        return new StripedInputStream(name, entry);
+    }
+
+    /*
+     * The file only becomes visible once exactly size bytes have been written and the stream is
+     * closed. A short transfer is thrown away instead of leaving a truncated copy behind.
+     */
+    public OutputStream openWrite(String name, long size) throws IOException {
+        if (!isValidName(name)) {
+            throw new IOException("Invalid file name " + name);
+        }
+        if (size >= STRIPE_THRESHOLD && volumes.size() > 1) {
+            int[] order = placeStripes(size);
+            if (order.length > 1) {
+                return new StripedOutputStream(name, size, order);
+            }
+        }
+        return new WholeOutputStream(name, size, placeWhole(size));
+    }
+
+    /*
+     * A stored name must stay a single entry in its shard directory: anything with a separator
+     * would land in a subdirectory the index never lists, and . or .. would leave the tree.
+     */
+    public static boolean isValidName(String name) {
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..")
+                && name.indexOf('/') == -1 && name.indexOf('\\') == -1 && name.indexOf('\0') == -1;
+    }
+
+    /**
+     * Moves every file still in the flat layout into its shard. Each file is moved inside the
+     * index update for its name, so uploads and other moves of the same name wait for it, and a
+     * reader that looked up the old place retries with the new one. Files that cannot be moved
+     * (on Windows, files that are being read) stay where they are until the next run.
+     *
+     * @return the number of files moved
+     */
+    public int migrate() {
+        int moved = 0;
+        int failed = 0;
+        for (String name : index.keySet()) {
+            Entry entry = index.get(name);
+            if (entry == null || !entry.flat()) {
+                continue;
+            }
+            Entry result = index.computeIfPresent(name, (key, current) -> current.flat() ? moveToShard(key, current) : current);
+            if (result == null) {
+                continue;
+            }
+            if (result.flat()) {
+                failed++;
+            } else {
+                moved++;
+            }
+        }
+        if (moved > 0 || failed > 0) {
+            EventLog.info("storage", null, "Moved " + moved + " files into shards"
+                    + (failed > 0 ? ", " + failed + " left for the next run" : ""));
+        }
+        return moved;
+    }
+
+    private Entry moveToShard(String name, Entry entry) {
+        Entry sharded = entry.toShards();
+        List<File> from = filesOf(name, entry);
+        List<File> to = filesOf(name, sharded);
+        // The manifest comes last in both lists, so a crash part way leaves the flat copy in use
+        for (int i = 0; i < from.size(); i++) {
+            try {
+                Files.createDirectories(to.get(i).getParentFile().toPath());
+                Files.move(from.get(i).toPath(), to.get(i).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                for (int j = i - 1; j >= 0; j--) {
+                    to.get(j).renameTo(from.get(j));
+                }
+                EventLog.warn("storage", null, "Couldn't move " + name + " into its shard: " + e.getMessage());
+                return entry;
+            }
+        }
+        return sharded;
+    }
+
+    private Entry getEntry(String name) throws FileNotFoundException {
+        Entry entry = index.get(name);
+        if (entry == null) {
+            throw new FileNotFoundException(name);
+        }
+        return entry;
+    }
+
+    // Sharded copies are loaded after flat ones, so they win if a crash left a file in both
+    private void loadIndex() throws IOException {
+        for (int v = 0; v < volumes.size(); v++) {
+            Volume volume = volumes.get(v);
+            File[] files = volume.root.listFiles(File::isFile);
+            if (files != null) {
+                for (File file : files) {
+                    put(file.getName(), new Entry(file.length(), false, new int[]{v}, true, null));
+                }
+            }
+        }
+        loadFlatStripes();
+        for (int v = 0; v < volumes.size(); v++) {
+            int volume = v;
+            forEachSharded(new File(volumes.get(v).shards, FILES),
+                    file -> put(file.getName(), new Entry(file.length(), false, new int[]{volume}, false, null)));
+            forEachSharded(new File(volumes.get(v).shards, MANIFESTS), file -> {
+                Entry entry = readManifest(file, false);
+                if (entry != null) {
+                    put(file.getName(), entry);
+                }
+            });
+        }
+    }
+
+    /*
+     * Before sharding, stripe units and manifests shared .stripes and manifests were told apart
+     * only by their suffix, so the stripe unit of a striped file named x.manifest looks like the
+     * manifest of x. Such lookalikes are dropped: they fail the manifest checks, or they sit on a
+     * volume that holds a stripe of x.manifest.
+     */
+    private void loadFlatStripes() throws IOException {
+        record Candidate(String name, int volume, Entry entry) {}
+        List<Candidate> candidates = new ArrayList<>();
+        Map<String, Entry> byName = new HashMap<>();
+        for (int v = 0; v < volumes.size(); v++) {
+            File[] manifests = new File(volumes.get(v).root, FLAT_STRIPE_DIR)
+                    .listFiles((dir, name) -> name.endsWith(FLAT_MANIFEST_SUFFIX));
+            if (manifests == null) {
+                continue;
+            }
+            for (File manifest : manifests) {
+                String name = manifest.getName();
+                Entry entry = readManifest(manifest, true);
+                // A real manifest is always written on the first volume of its stripe order
+                if (entry != null && entry.volumes()[0] == v) {
+                    name = name.substring(0, name.length() - FLAT_MANIFEST_SUFFIX.length());
+                    candidates.add(new Candidate(name, v, entry));
+                    byName.putIfAbsent(name, entry);
+                }
+            }
+        }
+        for (Candidate candidate : candidates) {
+            Entry owner = byName.get(candidate.name() + FLAT_MANIFEST_SUFFIX);
+            if (owner != null && Arrays.stream(owner.volumes()).anyMatch(v -> v == candidate.volume())) {
+                continue;
+            }
+            put(candidate.name(), candidate.entry());
+        }
+    }
+
+    private void put(String name, Entry entry) {
+        index.put(name, entry);
+        names.add(name);
+    }
+
+    private interface FileVisitor {
+        void visit(File file) throws IOException;
+    }
+
+    private static void forEachSharded(File tree, FileVisitor visitor) throws IOException {
+        File[] outer = tree.listFiles(File::isDirectory);
+        if (outer == null) {
+            return;
+        }
+        for (File first : outer) {
+            File[] inner = first.listFiles(File::isDirectory);
+            if (inner == null) {
+                continue;
+            }
+            for (File second : inner) {
+                File[] files = second.listFiles(File::isFile);
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    visitor.visit(file);
+                }
+            }
+        }
+    }
+
+    // Free space divided by the transfers already running on the volume
+    private double score(Volume volume) {
+        return (double) volume.root.getUsableSpace() / (1 + volume.activeOps.get());
+    }
+
+    private int placeWhole(long size) throws IOException {
+        int best = -1;
+        for (int v = 0; v < volumes.size(); v++) {
+            Volume volume = volumes.get(v);
+            if (volume.root.getUsableSpace() > size && (best == -1 || score(volume) > score(volumes.get(best)))) {
+                best = v;
+            }
+        }
+        if (best == -1) {
+            throw new IOException("No storage directory has room for " + size + " bytes");
+        }
+        return best;
+    }
+
+    /*
+     * Each volume the file is striped over takes its share plus at most one unit. Dropping a volume
+     * that is too full grows the share of the rest, so the check repeats until nothing changes.
+     */
+    private int[] placeStripes(long size) {
+        List<Integer> candidates = new ArrayList<>();
+        for (int v = 0; v < volumes.size(); v++) {
+            candidates.add(v);
+        }
+        int eligible;
+        do {
+            eligible = candidates.size();
+            long share = size / eligible + STRIPE_UNIT;
+            candidates.removeIf(v -> volumes.get(v).root.getUsableSpace() <= share);
+        } while (!candidates.isEmpty() && candidates.size() < eligible);
+        candidates.sort(Comparator.comparingDouble((Integer v) -> score(volumes.get(v))).reversed());
+        return candidates.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /*
+     * Moves the finished upload into place and publishes its entry as one step, then drops
+     * whatever the older copy left behind. The moves are pairs of temporary file and target.
+     */
+    private void commit(String name, Entry entry, List<File[]> moves) throws IOException {
+        try {
+            index.compute(name, (key, previous) -> {
+                try {
+                    for (File[] move : moves) {
+                        Files.createDirectories(move[1].getParentFile().toPath());
+                        Files.move(move[0].toPath(), move[1].toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (previous != null) {
+                    List<File> kept = filesOf(key, entry);
+                    kept.add(etagFile(key, entry));
+                    for (File file : filesOf(key, previous)) {
+                        if (!kept.contains(file)) {
+                            file.delete();
+                        }
+                    }
+                    if (!kept.contains(etagFile(key, previous))) {
+                        etagFile(key, previous).delete();
+                    }
+                }
+                names.add(key);
+                return entry;
+            });
+        } catch (UncheckedIOException e) {
+            for (File[] move : moves) {
+                move[0].delete();
+            }
+            throw e.getCause();
+        }
+    }
+
+    // Every file behind an entry, with the manifest of a striped file last
+    private List<File> filesOf(String name, Entry entry) {
+        List<File> files = new ArrayList<>();
+        for (int v : entry.volumes()) {
+            files.add(dataFile(v, name, entry));
+        }
+        if (entry.striped()) {
+            files.add(manifestFile(entry.volumes()[0], name, entry.flat()));
+        }
+        return files;
+    }
+
+    private File dataFile(int volume, String name, Entry entry) {
+        Volume v = volumes.get(volume);
+        if (entry.flat()) {
+            return entry.striped() ? new File(new File(v.root, FLAT_STRIPE_DIR), name) : new File(v.root, name);
+        }
+        return shardFile(new File(v.shards, entry.striped() ? STRIPES : FILES), name);
+    }
+
+    private File manifestFile(int volume, String name, boolean flat) {
+        Volume v = volumes.get(volume);
+        if (flat) {
+            return new File(new File(v.root, FLAT_STRIPE_DIR), name + FLAT_MANIFEST_SUFFIX);
+        }
+        return shardFile(new File(v.shards, MANIFESTS), name);
+    }
+
+    private File etagFile(String name, Entry entry) {
+        return shardFile(new File(volumes.get(entry.volumes()[0]).shards, ETAGS), name);
+    }
+
+    // The file whose size and modification time a stored ETag is checked against
+    private File stampedFile(String name, Entry entry) {
+        List<File> files = filesOf(name, entry);
+        return files.get(files.size() - 1);
+    }
+
+    // Null if no digest was stored for the file, or the file was changed after it was
+    private String readEtag(String name, Entry entry) {
+        File stamped = stampedFile(name, entry);
+        try (DataInputStream in = new DataInputStream(new FileInputStream(etagFile(name, entry)))) {
+            if (in.readLong() == stamped.length() && in.readLong() == stamped.lastModified()) {
+                return in.readUTF();
+            }
+        } catch (IOException e) {
+            // Missing or cut short, so it is computed again
+        }
+        return null;
+    }
+
+    private File newEtagFile(int volume, long stampedLength, long stampedTime, String etag) throws IOException {
+        File temp = newUploadFile(volume);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeLong(stampedLength);
+            out.writeLong(stampedTime);
+            out.writeUTF(etag);
+        }
+        return temp;
+    }
+
+    private File newUploadFile(int volume) {
+        return new File(volumes.get(volume).uploads, uploadIds.incrementAndGet() + ".upload");
+    }
+
+    /*
+     * Two levels of 256 directories picked by a mixed String.hashCode, which is fixed by the
+     * language spec. It must never change, or every stored file would be looked for in the wrong place.
+     */
+    static File shardFile(File tree, String name) {
+        int hash = name.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        char[] first = {Character.forDigit((hash >>> 28) & 0xf, 16), Character.forDigit((hash >>> 24) & 0xf, 16)};
+        char[] second = {Character.forDigit((hash >>> 20) & 0xf, 16), Character.forDigit((hash >>> 16) & 0xf, 16)};
+        return new File(new File(new File(tree, new String(first)), new String(second)), name);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    // Null, with a warning, if the file is not a well formed manifest for these volumes
+    private Entry readManifest(File manifest, boolean flat) throws IOException {
+        long length = manifest.length();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(manifest))) {
+            if (length >= 12) {
+                long size = in.readLong();
+                int count = in.readInt();
+                if (size > 0 && count >= 1 && count <= volumes.size() && length == 12 + 4L * count) {
+                    int[] order = new int[count];
+                    boolean[] seen = new boolean[volumes.size()];
+                    boolean valid = true;
+                    for (int i = 0; i < count && valid; i++) {
+                        order[i] = in.readInt();
+                        valid = order[i] >= 0 && order[i] < seen.length && !seen[order[i]];
+                        if (valid) {
+                            seen[order[i]] = true;
+                        }
+                    }
+                    if (valid) {
+                        return new Entry(size, true, order, flat, null);
+                    }
+                }
+            }
+        }
+        EventLog.warn("storage", null, "Ignoring " + manifest.getPath() + ", it is not a valid manifest");
+        return null;
+    }
+
+    /*
+     * flat marks files still in the layout from before sharding. The ETag is a SHA-256 of the
+     * content; null on files loaded at startup until it is first asked for.
+     */
+    private record Entry(long size, boolean striped, int[] volumes, boolean flat, String etag) {
+        Entry withEtag(String etag) {
+            return new Entry(size, striped, volumes, flat, etag);
+        }
+
+        Entry toShards() {
+            return new Entry(size, striped, volumes, false, etag);
+        }
+    }
+
+    private static class Volume {
+        private final File root;
+        private final File shards;
+        private final File uploads;
+        private final AtomicInteger activeOps = new AtomicInteger();
+
+        private FileChannel lockChannel;
+
+        Volume(File root) {
+            this.root = root;
+            this.shards = new File(root, SHARD_DIR);
+            this.uploads = new File(shards, UPLOADS);
+        }
+
+        void lock() throws IOException {
+            FileChannel channel = FileChannel.open(new File(shards, LOCK).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            boolean locked = false;
+            try {
+                locked = channel.tryLock() != null;
+            } catch (OverlappingFileLockException e) {
+                // Already open in this process
+            } finally {
+                if (!locked) {
+                    channel.close();
+                }
+            }
+            if (!locked) {
+                throw new VolumeInUseException(root);
+            }
+            lockChannel = channel;
+        }
+
+        // Closing the channel releases the lock
+        void unlock() {
+            if (lockChannel == null) {
+                return;
+            }
+            try {
+                lockChannel.close();
+            } catch (IOException e) {
+                EventLog.warn("storage", null, "Couldn't unlock " + root.getPath() + ": " + e.getMessage());
+            }
+            lockChannel = null;
+        }
+    }
+
+    public static class VolumeInUseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        VolumeInUseException(File root) {
+            super(root.getPath() + " is in use by another server");
+        }
+    }
+
+    private static class TrackedInputStream extends FileInputStream {
+        private final Volume volume;
+        private boolean closed = false;
+
+        TrackedInputStream(File file, Volume volume) throws FileNotFoundException {
+            super(file);
+            this.volume = volume;
+            volume.activeOps.incrementAndGet();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                volume.activeOps.decrementAndGet();
+            }
+            super.close();
+        }
+    }
+
+    private class WholeOutputStream extends OutputStream {
+        private final String name;
+        private final long size;
+        private final int volume;
+        private final File temp;
+        private final FileOutputStream out;
+        private final MessageDigest digest = newDigest();
+        private long written = 0;
+        private boolean closed = false;
+
+        WholeOutputStream(String name, long size, int volume) throws IOException {
+            this.name = name;
+            this.size = size;
+            this.volume = volume;
+            this.temp = newUploadFile(volume);
+            this.out = new FileOutputStream(temp);
+            volumes.get(volume).activeOps.incrementAndGet();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            digest.update(b, off, len);
+            written += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            volumes.get(volume).activeOps.decrementAndGet();
+            out.close();
+            if (written != size) {
+                temp.delete();
+                throw new IOException("Upload of " + name + " ended after " + written + " of " + size + " bytes");
+            }
+            Entry entry = new Entry(size, false, new int[]{volume}, false, toHex(digest.digest()));
+            // Moving keeps the modification time, so the stamp taken from the temporary file holds
+            File tempEtag = newEtagFile(volume, temp.length(), temp.lastModified(), entry.etag());
+            commit(name, entry, List.of(new File[]{tempEtag, etagFile(name, entry)},
+                    new File[]{temp, dataFile(volume, name, entry)}));
+        }
+    }
+
+    private class StripedOutputStream extends OutputStream {
+        private final String name;
+        private final long size;
+        private final int[] order;
+        private final File[] temps;
+        private final FileOutputStream[] outs;
+        private final MessageDigest digest = newDigest();
+        private long written = 0;
+        private boolean closed = false;
+
+        StripedOutputStream(String name, long size, int[] order) throws IOException {
+            this.name = name;
+            this.size = size;
+            this.order = order;
+            this.temps = new File[order.length];
+            this.outs = new FileOutputStream[order.length];
+            for (int i = 0; i < order.length; i++) {
+                temps[i] = newUploadFile(order[i]);
+                outs[i] = new FileOutputStream(temps[i]);
+                volumes.get(order[i]).activeOps.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                long unit = written / STRIPE_UNIT;
+                int count = (int) Math.min(len, STRIPE_UNIT - written % STRIPE_UNIT);
+                outs[(int) (unit % order.length)].write(b, off, count);
+                digest.update(b, off, count);
+                written += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            IOException failure = null;
+            for (int i = 0; i < order.length; i++) {
+                volumes.get(order[i]).activeOps.decrementAndGet();
+                try {
+                    outs[i].close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null || written != size) {
+                for (File temp : temps) {
+                    temp.delete();
+                }
+                throw failure != null ? failure
+                        : new IOException("Upload of " + name + " ended after " + written + " of " + size + " bytes");
+            }
+
+            Entry entry = new Entry(size, true, order, false, toHex(digest.digest()));
+            File tempManifest = newUploadFile(order[0]);
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tempManifest))) {
+                out.writeLong(size);
+                out.writeInt(order.length);
+                for (int v : order) {
+                    out.writeInt(v);
+                }
+            }
+            List<File[]> moves = new ArrayList<>();
+            File tempEtag = newEtagFile(order[0], tempManifest.length(), tempManifest.lastModified(), entry.etag());
+            moves.add(new File[]{tempEtag, etagFile(name, entry)});
+            for (int i = 0; i < order.length; i++) {
+                moves.add(new File[]{temps[i], dataFile(order[i], name, entry)});
+            }
+            // The manifest is moved last, so a crash before this point leaves no half-striped file visible
+            moves.add(new File[]{tempManifest, manifestFile(order[0], name, false)});
+            commit(name, entry, moves);
+        }
+    }
+
+    /*
+     * Keeps one unit per volume in flight, so every disk holding the file is read at the same time
+     * while the caller consumes the units in order.
+     */
+    private class StripedInputStream extends InputStream {
+        private final Entry entry;
+        private final FileChannel[] channels;
+        private final long units;
+        private final Deque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+        private long nextUnit = 0;
+        private ByteBuffer current = ByteBuffer.allocate(0);
+        private boolean closed = false;
+
+        StripedInputStream(String name, Entry entry) throws IOException {
+            this.entry = entry;
+            this.channels = new FileChannel[entry.volumes().length];
+            for (int i = 0; i < channels.length; i++) {
+                try {
+                    channels[i] = FileChannel.open(dataFile(entry.volumes()[i], name, entry).toPath(), StandardOpenOption.READ);
+                } catch (NoSuchFileException e) {
+                    for (int j = 0; j < i; j++) {
+                        volumes.get(entry.volumes()[j]).activeOps.decrementAndGet();
+                        channels[j].close();
+                    }
+                    throw new FileNotFoundException(name);
+                }
+                volumes.get(entry.volumes()[i]).activeOps.incrementAndGet();
+            }
+            this.units = (entry.size() + STRIPE_UNIT - 1) / STRIPE_UNIT;
+            while (pending.size() < channels.length && nextUnit < units) {
+                prefetch();
+            }
+        }
+
+        private void prefetch() {
+            long unit = nextUnit++;
+            FileChannel channel = channels[(int) (unit % channels.length)];
+            long position = (unit / channels.length) * STRIPE_UNIT;
+            int length = (int) Math.min(STRIPE_UNIT, entry.size() - unit * STRIPE_UNIT);
+            pending.addLast(ioExecutor.submit(() -> {
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("Stripe ended early");
+                    }
+                }
+                buffer.flip();
+                return buffer;
+            }));
+        }
+
+        private boolean advance() throws IOException {
+            Future<ByteBuffer> next = pending.pollFirst();
+            if (next == null) {
+                return false;
+            }
+            try {
+                current = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading stripes");
+            } catch (ExecutionException e) {
+                throw new IOException("Couldn't read stripe", e.getCause());
+            }
+            if (nextUnit < units) {
+                prefetch();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!current.hasRemaining() && !advance()) {
+                return -1;
+            }
+            int count = Math.min(len, current.remaining());
+            current.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Future<ByteBuffer> future : pending) {
+                future.cancel(false);
+            }
+            for (int i = 0; i < channels.length; i++) {
+                volumes.get(entry.volumes()[i]).activeOps.decrementAndGet();
+                channels[i].close();
+            }
+        }
+    }
+}
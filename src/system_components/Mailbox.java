@@ -0,0 +1,235 @@
+package system_components;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Durable per-alias mailboxes for messages sent to registered users that are currently offline.
+ * Each mailbox is an append-only log split into fixed size segments, so queueing a message is a
+ * single append and old data is dropped by deleting whole segments.
+ */
+public class Mailbox {
+    private static final long SEGMENT_SIZE = 256 * 1024;
+    private static final int MAX_SEGMENTS = 16;
+    private static final long RETENTION_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File root;
+    private final Map<String, Box> boxes = new ConcurrentHashMap<>();
+
+    public Mailbox(File root) {
+        this.root = root;
+        File[] dirs = root.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                String alias = decodeAlias(dir.getName());
+                if (alias != null) {
+                    boxes.put(alias, new Box(dir));
+                }
+            }
+        }
+    }
+
+    public record Message(long timestamp, String sender, String time, String text) {}
+
+    // Messages read for delivery and the segments they came from; nothing is deleted until ack
+    public record Delivery(String alias, List<Message> messages, List<File> segments) {}
+
+    // Marks the alias as a known user so that messages sent while it is offline are kept
+    public void open(String alias) {
+        boxes.computeIfAbsent(alias, a -> {
+            File dir = new File(root, encodeAlias(a));
+            if (!dir.exists() && !dir.mkdirs()) {
+                EventLog.error("mailbox", a, "Couldn't create mailbox directory " + dir.getPath());
+            }
+            return new Box(dir);
+        });
+    }
+
+    public boolean isKnown(String alias) {
+        return boxes.containsKey(alias);
+    }
+
+    public void append(String alias, String sender, String time, String text) throws IOException {
+        Box box = boxes.get(alias);
+        if (box == null) {
+            throw new FileNotFoundException("No mailbox for " + alias);
+        }
+        box.append(new Message(System.currentTimeMillis(), sender, time, text));
+    }
+
+    /*
+     * Returns every pending message for the alias, oldest first, without removing them. Messages
+     * queued after this call go to a new segment, so acknowledging the delivery cannot drop them.
+     */
+    public Delivery read(String alias) throws IOException {
+        Box box = boxes.get(alias);
+        if (box == null) {
+            return new Delivery(alias, Collections.emptyList(), Collections.emptyList());
+        }
+        return box.read(alias);
+    }
+
+    // Deletes the delivered messages once they have been written to the client
+    public void ack(Delivery delivery) {
+        Box box = boxes.get(delivery.alias());
+        if (box != null) {
+            box.ack(delivery.segments());
+        }
+    }
+
+    // Drops segments whose newest message is past the retention window
+    public void compact() {
+        long cutoff = System.currentTimeMillis() - RETENTION_MILLIS;
+        for (Box box : boxes.values()) {
+            box.compact(cutoff);
+        }
+    }
+
+    private static String encodeAlias(String alias) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : alias.getBytes(StandardCharsets.UTF_8)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static String decodeAlias(String name) {
+        if (name.isEmpty() || name.length() % 2 != 0) {
+            return null;
+        }
+        try {
+            byte[] bytes = new byte[name.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(name.substring(2 * i, 2 * i + 2), 16);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class Box {
+        private final File dir;
+        private final Deque<File> segments = new ArrayDeque<>();
+        private DataOutputStream active;
+        private long activeSize;
+        private long nextSegment;
+
+        Box(File dir) {
+            this.dir = dir;
+            File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+            if (files != null) {
+                Arrays.sort(files, Comparator.comparing(File::getName));
+                for (File file : files) {
+                    segments.addLast(file);
+                    nextSegment = Math.max(nextSegment, segmentNumber(file) + 1);
+                }
+            }
+        }
+
+        synchronized void append(Message message) throws IOException {
+            if (active == null || activeSize >= SEGMENT_SIZE) {
+                roll();
+            }
+            active.writeLong(message.timestamp());
+            active.writeUTF(message.sender());
+            active.writeUTF(message.time());
+            active.writeUTF(message.text());
+            active.flush();
+            activeSize = active.size();
+        }
+
+        synchronized Delivery read(String alias) throws IOException {
+            closeActive();
+            List<Message> messages = new ArrayList<>();
+            long cutoff = System.currentTimeMillis() - RETENTION_MILLIS;
+            for (File segment : segments) {
+                readSegment(segment, cutoff, messages);
+            }
+            return new Delivery(alias, messages, new ArrayList<>(segments));
+        }
+
+        synchronized void ack(List<File> delivered) {
+            for (File segment : delivered) {
+                // Compaction may have removed it already
+                if (segments.remove(segment) && !segment.delete()) {
+                    EventLog.warn("mailbox", null, "Couldn't delete mailbox segment " + segment.getPath());
+                }
+            }
+        }
+
+        synchronized void compact(long cutoff) {
+            Iterator<File> it = segments.iterator();
+            while (it.hasNext()) {
+                File segment = it.next();
+                if (segment.lastModified() >= cutoff) {
+                    break;
+                }
+                if (active != null && !it.hasNext()) {
+                    closeActive();
+                }
+                if (segment.delete()) {
+                    it.remove();
+                }
+            }
+        }
+
+        private void roll() throws IOException {
+            closeActive();
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Couldn't create mailbox directory " + dir.getPath());
+            }
+            // Retention bound: the oldest segment goes once the mailbox is full
+            while (segments.size() >= MAX_SEGMENTS) {
+                File oldest = segments.removeFirst();
+                if (!oldest.delete()) {
+                    EventLog.warn("mailbox", null, "Couldn't delete mailbox segment " + oldest.getPath());
+                }
+            }
+            File segment = new File(dir, String.format("%020d%s", nextSegment++, SEGMENT_SUFFIX));
+            segments.addLast(segment);
+            active = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment, true)));
+            activeSize = 0;
+        }
+
+        private void closeActive() {
+            if (active != null) {
+                try {
+                    active.close();
+                } catch (IOException e) {
+                    EventLog.error("mailbox", null, "Couldn't close mailbox segment in " + dir.getPath(), e);
+                }
+                active = null;
+            }
+        }
+
+        private static void readSegment(File segment, long cutoff, List<Message> messages) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+                while (true) {
+                    Message message;
+                    try {
+                        message = new Message(in.readLong(), in.readUTF(), in.readUTF(), in.readUTF());
+                    } catch (EOFException e) {
+                        // End of segment, or a record torn by a crash mid-append
+                        break;
+                    }
+                    if (message.timestamp() >= cutoff) {
+                        messages.add(message);
+                    }
+                }
+            }
+        }
+
+        private static long segmentNumber(File segment) {
+            String name = segment.getName();
+            try {
+                return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package system_components;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * A TLS connection driven by an SSLEngine over a blocking SocketChannel, exposed as a Socket so
+ * it can be used anywhere the plain sockets are. Network data stays in direct buffers, and file
+ * transfers can be wrapped and unwrapped straight from and to a FileChannel.
+ * <p>
+ * All connections made from one SSLContext share its session cache, so a reconnect (or the
+ * second socket of a client) resumes the earlier session instead of doing a full handshake.
+ * <p>
+ * The server's private key stays on the server: {@link #createServerContext(File, char[])} loads a
+ * keystore, while clients get a truststore holding only the server's certificate through
+ * {@link #createClientContext(File, char[])}, and check the host name against it. For local use:
+ * <pre>
+ * keytool -genkeypair -alias fes -keyalg EC -keystore fes.p12 -storetype PKCS12 -dname CN=localhost -ext SAN=dns:localhost,ip:127.0.0.1
+ * keytool -exportcert -alias fes -keystore fes.p12 -file fes.crt
+ * keytool -importcert -alias fes -file fes.crt -keystore fes-trust.p12 -storetype PKCS12 -noprompt
+ * </pre>
+ */
+public class SecureSocket extends Socket {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private final InputStream inputStream = new SecureInputStream();
+    private final OutputStream outputStream = new SecureOutputStream();
+
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private volatile boolean handshakeDone = false;
+
+    private SecureSocket(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        this.netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        this.appIn = ByteBuffer.allocateDirect(session.getApplicationBufferSize());
+        this.appIn.flip();
+    }
+
+    // Server side: the keystore with the server's private key and certificate
+    public static SSLContext createServerContext(File keyStoreFile, char[] password) throws IOException {
+        try {
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(loadKeyStore(keyStoreFile, password), password);
+            return newContext(kmf.getKeyManagers(), null);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't load keystore " + keyStoreFile.getPath() + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Client side: a truststore with only the certificates to accept, no key material
+    public static SSLContext createClientContext(File trustStoreFile, char[] password) throws IOException {
+        try {
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(loadKeyStore(trustStoreFile, password));
+            return newContext(null, tmf.getTrustManagers());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't load truststore " + trustStoreFile.getPath() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static KeyStore loadKeyStore(File file, char[] password) throws IOException, GeneralSecurityException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(fis, password);
+            return keyStore;
+        }
+    }
+
+    private static SSLContext newContext(KeyManager[] keyManagers, TrustManager[] trustManagers) throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLSv1.3");
+        context.init(keyManagers, trustManagers, null);
+        context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        return context;
+    }
+
+    // Wraps a socket accepted from a ServerSocketChannel; the handshake happens on first use
+    public static SecureSocket accept(SSLContext context, Socket accepted) throws IOException {
+        SocketChannel channel = accepted.getChannel();
+        if (channel == null) {
+            throw new SocketException("Socket was not accepted from a channel");
+        }
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new SecureSocket(channel, engine);
+    }
+
+    /*
+     * The session port is the key used for the client session cache. Both sockets of a client pass
+     * the same one so the message socket can resume the session of the command socket.
+     */
+    public static SecureSocket connect(SSLContext context, String host, int port, int sessionPort) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        SSLEngine engine = context.createSSLEngine(host, sessionPort);
+        engine.setUseClientMode(true);
+        // Without this any certificate the truststore accepts would do, whatever host it was issued for
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return new SecureSocket(channel, engine);
+    }
+
+    public void startHandshake() throws IOException {
+        if (handshakeDone) {
+            return;
+        }
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                if (handshakeDone) {
+                    return;
+                }
+                engine.beginHandshake();
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                appIn.clear();
+                while (status != SSLEngineResult.HandshakeStatus.FINISHED
+                        && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    switch (status) {
+                        case NEED_WRAP -> status = wrap(EMPTY).getHandshakeStatus();
+                        case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                            SSLEngineResult result = unwrap();
+                            if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                                throw new SSLException("Connection closed during handshake");
+                            }
+                            status = result.getHandshakeStatus();
+                        }
+                        case NEED_TASK -> status = runTasks();
+                        default -> throw new SSLException("Unexpected handshake status " + status);
+                    }
+                }
+                appIn.flip();
+                handshakeDone = true;
+            }
+        }
+    }
+
+    // Encrypts count bytes of the file straight from a direct buffer
+    public void sendFile(ReadableByteChannel file, long count) throws IOException {
+        startHandshake();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(engine.getSession().getApplicationBufferSize());
+        synchronized (writeLock) {
+            while (count > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count));
+                int read = file.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("File ended before " + count + " more bytes were sent");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    wrap(buffer);
+                }
+                count -= read;
+            }
+        }
+    }
+
+    /*
+     * Decrypts count bytes from the connection and hands them to the channel straight from the
+     * decrypted buffer. Uploads pass a channel over the storage stream, which copies each chunk
+     * into a byte array once more on its way to the digest and the disk.
+     */
+    public void receiveFile(WritableByteChannel file, long count) throws IOException {
+        startHandshake();
+        synchronized (readLock) {
+            while (count > 0) {
+                if (!appIn.hasRemaining() && !fill()) {
+                    throw new EOFException("Connection closed with " + count + " bytes left");
+                }
+                ByteBuffer chunk = appIn.slice();
+                chunk.limit((int) Math.min(chunk.remaining(), count));
+                int written = file.write(chunk);
+                appIn.position(appIn.position() + written);
+                count -= written;
+            }
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return channel.socket().getPort();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel.isConnected();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            if (handshakeDone) {
+                engine.closeOutbound();
+                synchronized (writeLock) {
+                    wrap(EMPTY);
+                }
+            }
+        } catch (IOException e) {
+            // The peer is already gone, nothing to notify
+        } finally {
+            channel.close();
+            super.close();
+        }
+    }
+
+    // Reads and decrypts until application data is available; false once the connection is closed
+    private boolean fill() throws IOException {
+        appIn.clear();
+        while (true) {
+            SSLEngineResult result = unwrap();
+            if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                appIn.flip();
+                return appIn.hasRemaining();
+            }
+            // Post-handshake messages (TLS 1.3 tickets, key updates) may need a reply
+            SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                status = runTasks();
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                synchronized (writeLock) {
+                    wrap(EMPTY);
+                }
+            }
+            if (appIn.position() > 0) {
+                appIn.flip();
+                return true;
+            }
+        }
+    }
+
+    // One unwrap of a complete record, reading from the channel as needed; null on end of stream
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW -> {
+                    int packetSize = engine.getSession().getPacketBufferSize();
+                    if (netIn.capacity() < packetSize) {
+                        netIn = enlarge(netIn, packetSize);
+                    }
+                    if (channel.read(netIn) < 0) {
+                        return null;
+                    }
+                }
+                case BUFFER_OVERFLOW -> appIn = enlarge(appIn, appIn.capacity() + engine.getSession().getApplicationBufferSize());
+                default -> {
+                    return result;
+                }
+            }
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer source) throws IOException {
+        while (true) {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(source, netOut);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW -> netOut = ByteBuffer.allocateDirect(netOut.capacity() + engine.getSession().getPacketBufferSize());
+                case CLOSED -> {
+                    flushNetOut();
+                    if (source.hasRemaining()) {
+                        throw new SocketException("Connection is closed");
+                    }
+                    return result;
+                }
+                default -> {
+                    flushNetOut();
+                    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runTasks();
+                    }
+                    return result;
+                }
+            }
+        }
+    }
+
+    private void flushNetOut() throws IOException {
+        netOut.flip();
+        while (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+    }
+
+    private SSLEngineResult.HandshakeStatus runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+        return engine.getHandshakeStatus();
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int capacity) {
+        ByteBuffer larger = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    private class SecureInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            startHandshake();
+            synchronized (readLock) {
+                if (!appIn.hasRemaining() && !fill()) {
+                    return -1;
+                }
+                int count = Math.min(len, appIn.remaining());
+                appIn.get(b, off, count);
+                return count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            SecureSocket.this.close();
+        }
+    }
+
+    private class SecureOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            startHandshake();
+            ByteBuffer source = ByteBuffer.wrap(b, off, len);
+            synchronized (writeLock) {
+                while (source.hasRemaining()) {
+                    wrap(source);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            SecureSocket.this.close();
+        }
+    }
+}
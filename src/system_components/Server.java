@@ -1,7 +1,9 @@
 package system_components;
 
+import javax.net.ssl.SSLContext;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -10,30 +12,62 @@ import java.util.concurrent.*;
 public class Server {
     private final ServerSocket serverSocket;
     private final ServerSocket msgServerSocket;
+    private final SSLContext sslContext;
     protected final Map<String, Socket> clients = new ConcurrentHashMap<>();
     protected final Map<String, MsgClient> msgClients = new ConcurrentHashMap<>();
-    protected final String fileDirectory;
+    protected final FileStorage storage;
+    protected final FileSearchIndex searchIndex = new FileSearchIndex();
+    protected final Mailbox mailbox;
+    protected final TopicRegistry topics = new TopicRegistry();
+    protected final UserRegistry users = new UserRegistry();
+    protected final FileRelay relay = new FileRelay();
+    protected final SessionRegistry sessions = new SessionRegistry();
     protected List<String> fileList;
     protected boolean isRunning = true;
 
     private final ExecutorService clientHandlerExecutor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService maintenanceExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService presenceExecutor = Executors.newSingleThreadExecutor();
 
-    public Server(File fileDirectory) throws IOException {
+    public Server(File fileDirectory, File mailboxDirectory) throws IOException {
+        this(List.of(fileDirectory), mailboxDirectory, null);
+    }
+
+    // Files are spread over every directory in fileDirectories; a non-null SSLContext turns on TLS
+    public Server(List<File> fileDirectories, File mailboxDirectory, SSLContext sslContext) throws IOException {
         int port = 12345;
-        this.fileDirectory = fileDirectory.getPath() + File.separator;
+        this.storage = new FileStorage(fileDirectories);
+        // Built in the background so a large store does not hold up startup; /find waits for it
+        maintenanceExecutor.execute(() -> searchIndex.addAll(storage.list()));
+        this.mailbox = new Mailbox(mailboxDirectory);
+        this.sslContext = sslContext;
         fileList = new ArrayList<>();
-
-        serverSocket = new ServerSocket(port);
-        msgServerSocket = new ServerSocket(port + 1);
+        maintenanceExecutor.scheduleAtFixedRate(mailbox::compact, 0, 1, TimeUnit.HOURS);
+        // Files from before sharding are moved into shards while the server is already serving them
+        maintenanceExecutor.execute(storage::migrate);
+
+        if (sslContext != null) {
+            // SSLEngine needs the SocketChannel behind each accepted socket
+            serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
+            msgServerSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port + 1)).socket();
+        } else {
+            serverSocket = new ServerSocket(port);
+            msgServerSocket = new ServerSocket(port + 1);
+        }
 
         //Client acceptor thread
         clientHandlerExecutor.execute(this::run);
-        System.out.println("Server started on port " + port + " and message port " + (port + 1) + "...");
+        EventLog.info("server", null, "Server started on port " + port + " and message port " + (port + 1)
+                + (sslContext != null ? " with TLS" : "") + "...");
     }
 
     public void stop() {
         isRunning = false;
         clientHandlerExecutor.shutdown();
+        maintenanceExecutor.shutdown();
+        presenceExecutor.shutdown();
+        sessions.close();
+        storage.close();
         clients.values().forEach(this::closeSocket);
         try {
             if(serverSocket != null) {
@@ -43,8 +77,7 @@ public class Server {
                 msgServerSocket.close();
             }
         } catch(IOException ex) {
-            ex.printStackTrace();
-            System.out.println("Error occurred while closing the server sockets" + ex.getMessage());
+            EventLog.error("server", null, "Error occurred while closing the server sockets", ex);
         }
     }
     private void closeSocket(Socket socket) {
@@ -53,51 +86,98 @@ public class Server {
                 socket.close();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            EventLog.error("connection", null, "Error occurred while closing a client socket", e);
         }
     }
 
     private void run() {
         while(isRunning){
             try{
-                final Socket client = serverSocket.accept();
-                final Socket messageClient = msgServerSocket.accept();
+                final Socket client = secure(serverSocket.accept());
+                final Socket messageClient = secure(msgServerSocket.accept());
 
                 String alias = "User " + UUID.randomUUID().toString().substring(0, 4);
                 clients.put(alias, client);
                 msgClients.put(alias, new MsgClient(messageClient));
 
-                System.out.println("Client connected: " + alias);
+                EventLog.info("connection", alias, "Client connected: " + alias);
 
                 clientHandlerExecutor.submit(new ClientHandler(this, client, alias));
             } catch(SocketException ex) {
-                System.out.println("\nServer sockets closed");
+                EventLog.info("server", null, "Server sockets closed");
                 stop();
 
             } catch(IOException ex) {
-                ex.printStackTrace();
-                System.out.println("\nError occurred while accepting client connection" + ex.getMessage());
+                EventLog.error("connection", null, "Error occurred while accepting client connection", ex);
             }
         }
     }
 
+    private Socket secure(Socket socket) throws IOException {
+        return sslContext != null ? SecureSocket.accept(sslContext, socket) : socket;
+    }
+
     public static String getCurrentTime() {
         DateTimeFormatter dtf = DateTimeFormatter.ofPattern("<yyyy-MM-dd HH:mm:ss>");
         LocalDateTime now = LocalDateTime.now();
         return dtf.format(now);
     }
 
-    protected void updateFileList() {
-        File directory = new File(this.fileDirectory);
-        String[] files = directory.list();
+    // Pushes a join or leave event to every client watching presence, off the caller's thread
+    protected void publishPresence(String alias, boolean joined) {
+        String event = String.format("\nPresence %s: %s %s the server.", getCurrentTime(), alias, joined ? "joined" : "left");
+        presenceExecutor.execute(() -> {
+            for (String watcher : users.getWatchers()) {
+                MsgClient msgClient = msgClients.get(watcher);
+                if (watcher.equals(alias) || msgClient == null) {
+                    continue;
+                }
+                try {
+                    msgClient.sendNotice(event);
+                } catch (IOException e) {
+                    EventLog.error("presence", watcher, "Error occurred while sending a presence event", e);
+                }
+            }
+        });
+    }
 
-        if (files != null) {
-            this.fileList = Arrays.asList(files);
-        } else {
-            this.fileList = new ArrayList<>();
+    /*
+     * Writes the alias's queued messages to its message socket and only then removes them. Runs
+     * under the socket's lock, so the recipient and a sender that just queued a message cannot
+     * both send the same mailbox.
+     */
+    protected void deliverQueuedMessages(String alias) {
+        MsgClient msgClient = msgClients.get(alias);
+        if (msgClient == null) {
+            return;
+        }
+        synchronized (msgClient) {
+            Mailbox.Delivery delivery;
+            try {
+                delivery = mailbox.read(alias);
+            } catch (IOException e) {
+                EventLog.error("mailbox", alias, "Error occurred while reading the mailbox of " + alias, e);
+                return;
+            }
+            if (delivery.messages().isEmpty()) {
+                return;
+            }
+
+            try {
+                msgClient.sendBatch(delivery.messages());
+                // Only removed once written, so a failure or crash before this point keeps them queued
+                mailbox.ack(delivery);
+                EventLog.info("mailbox", alias, "Delivered " + delivery.messages().size() + " queued messages to " + alias);
+            } catch (IOException e) {
+                EventLog.error("mailbox", alias, "Error occurred while delivering queued messages to " + alias, e);
+            }
         }
     }
 
+    protected void updateFileList() {
+        this.fileList = storage.list();
+    }
+
     protected static class MsgClient {
         private final Socket msgClientSocket;
         private final DataOutputStream msgDataOutputStream;
@@ -108,17 +188,45 @@ public class Server {
         }
 
         public void sendMsg(String sender, String msg) throws IOException {
-            String message = String.format("\nMessage from %s %s: %s", sender, getCurrentTime(), msg);
+            sendMsg(sender, getCurrentTime(), msg);
+        }
+
+        public synchronized void sendMsg(String sender, String time, String msg) throws IOException {
+            String message = String.format("\nMessage from %s %s: %s", sender, time, msg);
             msgDataOutputStream.writeUTF(message);
         }
 
+        // Runs the TLS handshake up front so the client's message reader is not left waiting
+        public void startHandshake() throws IOException {
+            if (msgClientSocket instanceof SecureSocket secureSocket) {
+                secureSocket.startHandshake();
+            }
+        }
+
+        public synchronized void sendNotice(String notice) throws IOException {
+            msgDataOutputStream.writeUTF(notice);
+        }
+
+        // Writes every queued message to the socket in one go instead of one write per message
+        public void sendBatch(List<Mailbox.Message> messages) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream batch = new DataOutputStream(buffer);
+            for (Mailbox.Message message : messages) {
+                batch.writeUTF(String.format("\nMessage from %s %s: %s", message.sender(), message.time(), message.text()));
+            }
+            synchronized (this) {
+                buffer.writeTo(msgDataOutputStream);
+                msgDataOutputStream.flush();
+            }
+        }
+
         public void close() {
             try {
                 if(msgClientSocket != null && !msgClientSocket.isClosed()) {
                     msgClientSocket.close();
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                EventLog.error("connection", null, "Error occurred while closing a message socket", e);
             }
         }
     }
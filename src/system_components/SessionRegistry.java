@@ -0,0 +1,211 @@
+package system_components;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Resumable sessions of registered users.
+ * Registering issues a random token. When a connection drops without /leave its session is parked
+ * for a grace period instead of being torn down: the alias stays claimed, topic subscriptions are
+ * kept, messages go to the mailbox and a half-finished upload is held open. A new connection that
+ * sends /resume with the token takes all of it over; if none does in time the session expires.
+ */
+public class SessionRegistry {
+    private static final long GRACE_SECONDS = 60;
+    private static final int TOKEN_BYTES = 16;
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService expiryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "session-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public record Resumed(Session session, ClientHandler displaced) {}
+
+    public Session issue(String alias, ClientHandler owner) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(TOKEN_BYTES * 2);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        Session session = new Session(token.toString(), alias, owner);
+        sessions.put(session.token, session);
+        return session;
+    }
+
+    /*
+     * Hands the session to a new connection. If the old connection is still open, because the
+     * server has not noticed it dropping yet, it is returned as displaced for the caller to close.
+     * Null if the token is unknown or the session already expired.
+     */
+    public Resumed resume(String token, ClientHandler owner) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        synchronized (session) {
+            if (session.ended) {
+                return null;
+            }
+            if (session.expiry != null) {
+                session.expiry.cancel(false);
+                session.expiry = null;
+            }
+            ClientHandler displaced = session.owner;
+            session.owner = owner;
+            return new Resumed(session, displaced);
+        }
+    }
+
+    /*
+     * Starts the grace period after owner lost its connection; onExpiry runs if nobody resumes.
+     * False if another connection has taken the session over, so owner must leave it alone.
+     */
+    public boolean park(Session session, ClientHandler owner, Runnable onExpiry) {
+        synchronized (session) {
+            if (session.ended || session.owner != owner) {
+                return false;
+            }
+            session.owner = null;
+            session.expiry = expiryExecutor.schedule(() -> {
+                synchronized (session) {
+                    if (session.owner != null || session.ended) {
+                        return;
+                    }
+                    session.ended = true;
+                }
+                sessions.remove(session.token, session);
+                session.discardUploads();
+                onExpiry.run();
+            }, GRACE_SECONDS, TimeUnit.SECONDS);
+            return true;
+        }
+    }
+
+    // Called on /leave and when the user registers under another alias
+    public void end(Session session) {
+        synchronized (session) {
+            session.ended = true;
+            if (session.expiry != null) {
+                session.expiry.cancel(false);
+            }
+        }
+        sessions.remove(session.token, session);
+        session.discardUploads();
+    }
+
+    public void close() {
+        expiryExecutor.shutdownNow();
+    }
+
+    public static class Session {
+        private final String token;
+        private final String alias;
+        private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+        // Guarded by the session; a null owner means the session is parked
+        private ClientHandler owner;
+        private ScheduledFuture<?> expiry;
+        private boolean ended = false;
+
+        Session(String token, String alias, ClientHandler owner) {
+            this.token = token;
+            this.alias = alias;
+            this.owner = owner;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getAlias() {
+            return alias;
+        }
+
+        public void addUpload(Upload upload) {
+            Upload previous = uploads.put(upload.fileName, upload);
+            if (previous != null) {
+                previous.discard();
+            }
+        }
+
+        // Removes and returns the interrupted upload of the file, or null if there is none
+        public Upload takeUpload(String fileName) {
+            return uploads.remove(fileName);
+        }
+
+        public List<Upload> getUploads() {
+            return new ArrayList<>(uploads.values());
+        }
+
+        private void discardUploads() {
+            for (Upload upload : getUploads()) {
+                if (uploads.remove(upload.fileName, upload)) {
+                    upload.discard();
+                }
+            }
+        }
+    }
+
+    /*
+     * Storage stream of an upload that counts the bytes it has taken and remembers whether the
+     * storage side failed, so a broken connection can be told apart from a broken disk.
+     */
+    public static class Upload extends FilterOutputStream {
+        final String fileName;
+        final long size;
+        private long received = 0;
+        private boolean failed = false;
+
+        public Upload(String fileName, long size, OutputStream out) {
+            super(out);
+            this.fileName = fileName;
+            this.size = size;
+        }
+
+        public long getReceived() {
+            return received;
+        }
+
+        public long getRemaining() {
+            return size - received;
+        }
+
+        public boolean hasFailed() {
+            return failed;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            received += len;
+        }
+
+        // Closes a short upload, which makes the storage throw the partial file away
+        void discard() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Expected, the upload is short
+            }
+        }
+    }
+}
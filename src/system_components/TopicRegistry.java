@@ -0,0 +1,73 @@
+package system_components;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of named topics and the aliases subscribed to them.
+ * A reverse index from alias to topics is kept so a leaving client can be removed from its
+ * topics without scanning every topic on the server.
+ */
+public class TopicRegistry {
+    private final Map<String, Set<String>> subscribers = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> subscriptions = new ConcurrentHashMap<>();
+
+    public boolean subscribe(String topic, String alias) {
+        subscriptions.computeIfAbsent(alias, a -> ConcurrentHashMap.newKeySet()).add(topic);
+        boolean[] added = new boolean[1];
+        subscribers.compute(topic, (t, aliases) -> {
+            Set<String> updated = aliases != null ? aliases : ConcurrentHashMap.newKeySet();
+            added[0] = updated.add(alias);
+            return updated;
+        });
+        return added[0];
+    }
+
+    public boolean unsubscribe(String topic, String alias) {
+        Set<String> topics = subscriptions.get(alias);
+        if (topics != null) {
+            topics.remove(topic);
+        }
+        boolean[] removed = new boolean[1];
+        // Drop the topic entry once its last subscriber leaves
+        subscribers.computeIfPresent(topic, (t, aliases) -> {
+            removed[0] = aliases.remove(alias);
+            return aliases.isEmpty() ? null : aliases;
+        });
+        return removed[0];
+    }
+
+    public Set<String> getSubscribers(String topic) {
+        Set<String> aliases = subscribers.get(topic);
+        return aliases != null ? aliases : Collections.emptySet();
+    }
+
+    public Set<String> getTopics(String alias) {
+        Set<String> topics = subscriptions.get(alias);
+        return topics != null ? Collections.unmodifiableSet(topics) : Collections.emptySet();
+    }
+
+    public void unsubscribeAll(String alias) {
+        Set<String> topics = subscriptions.remove(alias);
+        if (topics == null) {
+            return;
+        }
+        for (String topic : topics) {
+            unsubscribe(topic, alias);
+        }
+    }
+
+    // Moves every subscription of an alias over to the new alias after a re-register
+    public void rename(String oldAlias, String newAlias) {
+        Set<String> topics = subscriptions.remove(oldAlias);
+        if (topics == null) {
+            return;
+        }
+        for (String topic : topics) {
+            unsubscribe(topic, oldAlias);
+            subscribe(topic, newAlias);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package system_components;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of the registered aliases on the server.
+ * Claiming an alias is a single atomic insert, and every join or leave bumps a version number so
+ * /userlist can reuse the last snapshot until something actually changes.
+ */
+public class UserRegistry {
+    private final Set<String> registered = ConcurrentHashMap.newKeySet();
+    private final Set<String> watchers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyList());
+
+    public record Snapshot(long version, List<String> aliases) {}
+
+    // Returns false if another client already holds the alias
+    public boolean claim(String alias) {
+        if (!registered.add(alias)) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    public void release(String alias) {
+        watchers.remove(alias);
+        if (registered.remove(alias)) {
+            version.incrementAndGet();
+        }
+    }
+
+    public boolean isRegistered(String alias) {
+        return registered.contains(alias);
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    public Snapshot snapshot() {
+        Snapshot current = snapshot;
+        long latest = version.get();
+        if (current.version() == latest) {
+            return current;
+        }
+        // Tagged with the version read before copying, so a change made mid-copy forces another rebuild
+        List<String> aliases = new ArrayList<>(registered);
+        Collections.sort(aliases);
+        current = new Snapshot(latest, Collections.unmodifiableList(aliases));
+        snapshot = current;
+        return current;
+    }
+
+    public void watch(String alias) {
+        watchers.add(alias);
+    }
+
+    public void unwatch(String alias) {
+        watchers.remove(alias);
+    }
+
+    public boolean isWatching(String alias) {
+        return watchers.contains(alias);
+    }
+
+    public Set<String> getWatchers() {
+        return Collections.unmodifiableSet(watchers);
+    }
+}